@@ -0,0 +1,172 @@
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The AntiEntropyService class runs a background repair loop on the coordinator that brings replica
+ * stores back in line with the coordinator's store.
+ * <p>
+ * In every round the coordinator compares its {@link MerkleTree} with the tree of each available
+ * replica, starting at the root and descending only into subtrees whose hashes differ. The leaf
+ * buckets that still differ are handed to the {@link Source}, which pushes just the keys of those
+ * buckets to the replica. The number of buckets repaired per round is capped, so repair traffic
+ * follows the size of the divergence and never crowds out foreground requests.
+ * <p>
+ * The service is configured through the following system properties:
+ * <ul>
+ *   <li>{@code kv.ae.intervalMs} - interval between repair rounds (default 5000).</li>
+ *   <li>{@code kv.ae.maxBucketsPerRound} - maximum number of buckets repaired per round
+ *   (default 32).</li>
+ *   <li>{@code kv.ae.treeDepth} - depth of the Merkle tree, read by {@link Server}
+ *   (default 10, i.e. 1024 buckets).</li>
+ * </ul>
+ */
+public class AntiEntropyService {
+
+  /**
+   * Access to the coordinator state needed by the repair loop.
+   */
+  public interface Source {
+
+    /**
+     * Gets the replicas that should currently be repaired.
+     *
+     * @return the list of available replica servers.
+     */
+    List<RemoteInterface> getActiveReplicas();
+
+    /**
+     * Overwrites the given buckets on the replica with the coordinator's entries for them.
+     *
+     * @param replica the replica to be repaired.
+     * @param buckets the leaf buckets in which the replica differs.
+     * @throws RemoteException if a remote communication error occurs.
+     */
+    void repairBuckets(RemoteInterface replica, int[] buckets) throws RemoteException;
+  }
+
+  private final MerkleTree localTree;
+  private final Source source;
+  private final long intervalMs;
+  private final int maxBucketsPerRound;
+  private ScheduledExecutorService scheduler;
+
+  /**
+   * Constructs a new AntiEntropyService using the settings configured through system properties.
+   *
+   * @param localTree the Merkle tree of the coordinator's store.
+   * @param source    the coordinator state used to find and repair replicas.
+   */
+  public AntiEntropyService(MerkleTree localTree, Source source) {
+    this.localTree = localTree;
+    this.source = source;
+    this.intervalMs = Long.getLong("kv.ae.intervalMs", 5000L);
+    this.maxBucketsPerRound = Integer.getInteger("kv.ae.maxBucketsPerRound", 32);
+  }
+
+  /**
+   * Starts the periodic repair task. Calling this method more than once has no effect.
+   */
+  public synchronized void start() {
+    if (scheduler != null) {
+      return;
+    }
+    scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "anti-entropy");
+      t.setDaemon(true);
+      return t;
+    });
+    scheduler.scheduleWithFixedDelay(this::runRound, intervalMs, intervalMs,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stops the periodic repair task.
+   */
+  public synchronized void stop() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+      scheduler = null;
+    }
+  }
+
+  /**
+   * Runs a single repair round over all available replicas, within the per-round bucket budget.
+   */
+  public void runRound() {
+    int budget = maxBucketsPerRound;
+    for (RemoteInterface replica : source.getActiveReplicas()) {
+      if (budget <= 0) {
+        break;
+      }
+      try {
+        List<Integer> divergent = findDivergentBuckets(replica, budget);
+        if (divergent.isEmpty()) {
+          continue;
+        }
+        int[] buckets = divergent.stream().mapToInt(Integer::intValue).toArray();
+        source.repairBuckets(replica, buckets);
+        budget -= buckets.length;
+        System.out.println("Anti-entropy repaired " + buckets.length + " bucket(s) on replica "
+            + replica + ".");
+      } catch (RemoteException e) {
+        // Unreachable replicas are left to the failure detector.
+      }
+    }
+  }
+
+  /**
+   * Repairs every bucket in which the given replica differs, without the per-round budget.
+   * Used to catch up a replica before it rejoins the commit path.
+   *
+   * @param replica the replica to be synchronized.
+   * @throws RemoteException if a remote communication error occurs.
+   */
+  public void synchronize(RemoteInterface replica) throws RemoteException {
+    List<Integer> divergent = findDivergentBuckets(replica, 1 << localTree.getDepth());
+    if (!divergent.isEmpty()) {
+      source.repairBuckets(replica, divergent.stream().mapToInt(Integer::intValue).toArray());
+    }
+  }
+
+  /**
+   * Finds the leaf buckets in which the given replica differs from the coordinator by walking both
+   * trees from the root down, only following nodes whose hashes differ.
+   *
+   * @param replica the replica to be compared.
+   * @param limit   the maximum number of buckets to be returned.
+   * @return the indexes of the divergent leaf buckets.
+   * @throws RemoteException if a remote communication error occurs.
+   */
+  private List<Integer> findDivergentBuckets(RemoteInterface replica, int limit)
+      throws RemoteException {
+    List<Integer> divergent = new ArrayList<>();
+    divergent.add(0);
+
+    for (int level = 0; level <= localTree.getDepth() && !divergent.isEmpty(); level++) {
+      int[] indexes = divergent.stream().mapToInt(Integer::intValue).toArray();
+      long[] local = localTree.getHashes(level, indexes);
+      long[] remote = replica.getMerkleHashes(level, indexes);
+
+      List<Integer> next = new ArrayList<>();
+      for (int i = 0; i < indexes.length; i++) {
+        if (local[i] == remote[i]) {
+          continue;
+        }
+        if (level == localTree.getDepth()) {
+          next.add(indexes[i]);
+        } else {
+          next.add(2 * indexes[i]);
+          next.add(2 * indexes[i] + 1);
+        }
+      }
+      // Bound the frontier so a badly diverged replica is repaired over several rounds.
+      divergent = next.size() > 2 * limit ? next.subList(0, 2 * limit) : next;
+    }
+
+    return divergent.size() > limit ? divergent.subList(0, limit) : divergent;
+  }
+}
@@ -0,0 +1,74 @@
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The ChangeBatch class holds the events returned by one poll of a replica's change log.
+ * <p>
+ * A watcher passes {@link #getIncarnation()} and {@link #getNextSequence()} to its next poll. The
+ * cursor also moves past events that did not match the watched prefix, so they are not scanned
+ * again.
+ */
+public class ChangeBatch implements Serializable {
+  private static final long serialVersionUID = 2L;
+
+  private final List<ChangeEvent> events;
+  private final long incarnation;
+  private final long nextSequence;
+  private final boolean truncated;
+
+  /**
+   * Constructs a new ChangeBatch.
+   *
+   * @param events       the matching events, in sequence order.
+   * @param incarnation  the incarnation id of the change log the sequence numbers belong to.
+   * @param nextSequence the sequence number to resume from.
+   * @param truncated    true if events after the requested sequence number were already dropped.
+   */
+  public ChangeBatch(List<ChangeEvent> events, long incarnation, long nextSequence,
+      boolean truncated) {
+    this.events = events;
+    this.incarnation = incarnation;
+    this.nextSequence = nextSequence;
+    this.truncated = truncated;
+  }
+
+  /**
+   * Gets the matching events.
+   *
+   * @return the events, in sequence order.
+   */
+  public List<ChangeEvent> getEvents() {
+    return Collections.unmodifiableList(events);
+  }
+
+  /**
+   * Gets the incarnation id of the change log, to pass to the next poll. It changes when the
+   * replica restarts, since sequence numbers start over.
+   *
+   * @return the incarnation id.
+   */
+  public long getIncarnation() {
+    return incarnation;
+  }
+
+  /**
+   * Gets the sequence number to pass to the next poll.
+   *
+   * @return the sequence number of the first event not covered by this batch.
+   */
+  public long getNextSequence() {
+    return nextSequence;
+  }
+
+  /**
+   * Checks if the change log no longer held some of the requested events, or if the requested
+   * events belonged to an earlier run of the replica. A watcher that sees this has missed changes
+   * and should re-read the keys it cares about.
+   *
+   * @return true if events were missed, false otherwise.
+   */
+  public boolean isTruncated() {
+    return truncated;
+  }
+}
@@ -0,0 +1,97 @@
+import java.io.Serializable;
+
+/**
+ * The ChangeEvent class describes a single committed mutation of the key-value store of a replica,
+ * as delivered to watchers.
+ * <p>
+ * Sequence numbers are assigned by the replica in the order it applied its mutations and have no
+ * gaps, so a watcher can resume right after the last event it has seen. The version is the one
+ * assigned to the write by the coordinator and is the same on every replica. The coordinator
+ * appends its writes when they commit, so concurrent writes of one key may appear out of version
+ * order, and a watcher of a replica may see a write that the coordinator later reverted, followed
+ * by the event that reverts it.
+ */
+public class ChangeEvent implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * The kind of mutation.
+   */
+  public enum Type {
+    PUT,
+    DELETE
+  }
+
+  private final long sequence;
+  private final Type type;
+  private final String key;
+  private final String value;
+  private final long version;
+
+  /**
+   * Constructs a new ChangeEvent.
+   *
+   * @param sequence the position of the event in the replica's change log.
+   * @param type     the kind of mutation.
+   * @param key      the key that changed.
+   * @param value    the stored form of the new value, or null for a DELETE.
+   * @param version  the version of the write.
+   */
+  public ChangeEvent(long sequence, Type type, String key, String value, long version) {
+    this.sequence = sequence;
+    this.type = type;
+    this.key = key;
+    this.value = value;
+    this.version = version;
+  }
+
+  /**
+   * Gets the position of the event in the replica's change log.
+   *
+   * @return the sequence number.
+   */
+  public long getSequence() {
+    return sequence;
+  }
+
+  /**
+   * Gets the kind of mutation.
+   *
+   * @return PUT or DELETE.
+   */
+  public Type getType() {
+    return type;
+  }
+
+  /**
+   * Gets the key that changed.
+   *
+   * @return the key.
+   */
+  public String getKey() {
+    return key;
+  }
+
+  /**
+   * Gets the new value.
+   *
+   * @return the value, or null for a DELETE.
+   */
+  public String getValue() {
+    return ValueCodec.decode(value);
+  }
+
+  /**
+   * Gets the version of the write.
+   *
+   * @return the version.
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  @Override
+  public String toString() {
+    return "#" + sequence + " " + type + " " + key + (type == Type.PUT ? "=" + getValue() : "");
+  }
+}
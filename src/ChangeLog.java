@@ -0,0 +1,155 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The ChangeLog class records the committed mutations of a replica in the order they were applied
+ * and serves them to watchers.
+ * <p>
+ * The coordinator applies its own writes before replicating them, and appends them only once they
+ * reached enough replicas, so its log never holds a write that is reverted. A replica logs a write
+ * when it receives the commit; if the coordinator reverts the write afterwards, the replica's log
+ * holds the write followed by the event that restores the previous value.
+ * <p>
+ * The log is a ring buffer holding the most recent {@code kv.watch.logSize} events (default
+ * 100000). Watchers long-poll it with the sequence number to resume from, so a watcher that
+ * disconnects can continue where it left off as long as the events are still retained, and a slow
+ * watcher simply polls less often instead of having events pushed at it.
+ * <p>
+ * Reads scan the ring without holding the lock that appends take, and each read scans at most a
+ * fixed number of events, so a watcher of a rarely written prefix never holds up the writes of the
+ * replica. Every log has a random incarnation id; a watcher resuming with the id of an earlier log,
+ * e.g. after the replica restarted, is told that it missed events.
+ */
+public class ChangeLog {
+  // The maximum number of events one read looks at, so that a selective watcher returns and polls
+  // again instead of walking the whole ring in one call.
+  private static final int MAX_EVENTS_SCANNED = 10000;
+
+  private final AtomicReferenceArray<ChangeEvent> ring;
+  private final long incarnation;
+  // Watchers wait on this object, so that waking them up never contends with appends.
+  private final Object appended;
+  private volatile long firstSequence;
+  private volatile long nextSequence;
+
+  /**
+   * Constructs a new ChangeLog using the size configured through system properties.
+   */
+  public ChangeLog() {
+    this(Integer.getInteger("kv.watch.logSize", 100000));
+  }
+
+  /**
+   * Constructs a new ChangeLog.
+   *
+   * @param capacity the number of events retained.
+   */
+  public ChangeLog(int capacity) {
+    this.ring = new AtomicReferenceArray<>(capacity);
+    this.incarnation = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+    this.appended = new Object();
+  }
+
+  /**
+   * Gets the incarnation id of this log, which changes whenever the replica starts a new log.
+   *
+   * @return the incarnation id, never 0.
+   */
+  public long getIncarnation() {
+    return incarnation;
+  }
+
+  /**
+   * Appends a committed mutation to the log and wakes up waiting watchers.
+   *
+   * @param type    the kind of mutation.
+   * @param key     the key that changed.
+   * @param value   the new value, or null for a DELETE.
+   * @param version the version of the write.
+   */
+  public void append(ChangeEvent.Type type, String key, String value, long version) {
+    synchronized (this) {
+      long sequence = nextSequence;
+      // The oldest event is dropped before its slot is reused, so a reader that finds the slot
+      // overwritten also sees that the event is gone.
+      if (sequence + 1 - firstSequence > ring.length()) {
+        firstSequence++;
+      }
+      ring.set((int) (sequence % ring.length()),
+          new ChangeEvent(sequence, type, key, value, version));
+      nextSequence = sequence + 1;
+    }
+    synchronized (appended) {
+      appended.notifyAll();
+    }
+  }
+
+  /**
+   * Reads the events for keys starting with the given prefix, waiting for new events if there are
+   * none yet. The batch is marked as truncated if the requested events are no longer retained, if
+   * {@code incarnation} names an earlier log, or if {@code from} lies beyond the end of this log;
+   * reading then continues with the oldest retained event.
+   *
+   * @param prefix      the key prefix to be matched; an exact key or "" for all keys.
+   * @param incarnation the incarnation id of the log {@code from} refers to, or 0 if unknown.
+   * @param from        the sequence number of the first event wanted, or a negative number to only
+   *                    get events appended from now on.
+   * @param maxEvents   the maximum number of events to be returned.
+   * @param waitMs      the maximum time to wait for a matching event in milliseconds.
+   * @return the matching events and the sequence number to resume from.
+   */
+  public ChangeBatch read(String prefix, long incarnation, long from, int maxEvents,
+      long waitMs) {
+    long cursor = from < 0 ? nextSequence : from;
+    boolean truncated = false;
+    if (from >= 0 && ((incarnation != 0 && incarnation != this.incarnation)
+        || from > nextSequence)) {
+      truncated = true;
+      cursor = firstSequence;
+    }
+
+    long deadline = System.currentTimeMillis() + waitMs;
+    List<ChangeEvent> events = new ArrayList<>();
+    while (true) {
+      // The ring may have moved on while scanning or waiting.
+      if (cursor < firstSequence) {
+        truncated = true;
+        cursor = firstSequence;
+      }
+      long end = nextSequence;
+      int scanned = 0;
+      while (cursor < end && events.size() < maxEvents && scanned < MAX_EVENTS_SCANNED) {
+        ChangeEvent event = ring.get((int) (cursor % ring.length()));
+        if (event.getSequence() != cursor) {
+          // Overwritten by a newer event since the bounds were read.
+          break;
+        }
+        if (event.getKey().startsWith(prefix)) {
+          events.add(event);
+        }
+        cursor++;
+        scanned++;
+      }
+      if (cursor < end && scanned < MAX_EVENTS_SCANNED && events.size() < maxEvents) {
+        continue;
+      }
+
+      long remaining = deadline - System.currentTimeMillis();
+      if (!events.isEmpty() || truncated || scanned >= MAX_EVENTS_SCANNED || remaining <= 0) {
+        return new ChangeBatch(events, this.incarnation, cursor, truncated);
+      }
+      try {
+        synchronized (appended) {
+          if (nextSequence == end) {
+            appended.wait(remaining);
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return new ChangeBatch(events, this.incarnation, cursor, truncated);
+      }
+    }
+  }
+}
@@ -0,0 +1,131 @@
+import java.rmi.RemoteException;
+import java.util.List;
+
+/**
+ * The ChangeWatcher class follows the change log of a replica from a background thread and hands
+ * committed PUT and DELETE events for a key or prefix to a {@link Listener}.
+ * <p>
+ * The watcher long-polls the replica and only asks for the next batch once the previous one has
+ * been handled, so a slow listener slows down delivery instead of piling up events. After an RPC
+ * failure it waits and resumes from the last sequence number it has seen. A batch the listener
+ * fails to handle is delivered again after the same delay.
+ */
+public class ChangeWatcher {
+
+  /**
+   * Receives the events of a watch.
+   */
+  public interface Listener {
+
+    /**
+     * Called with the next batch of events, in sequence order.
+     *
+     * @param events the events.
+     */
+    void onEvents(List<ChangeEvent> events);
+
+    /**
+     * Called when the replica no longer held some of the events to resume from, e.g. after a long
+     * disconnect. The listener should re-read the keys it cares about.
+     */
+    void onEventsMissed();
+  }
+
+  private static final long POLL_WAIT_MS = 10000;
+  private static final long RETRY_DELAY_MS = 1000;
+
+  private final RemoteInterface replica;
+  private final String prefix;
+  private final int maxBatchSize;
+  private final Listener listener;
+  private volatile long incarnation;
+  private volatile long nextSequence;
+  private volatile boolean running;
+  private Thread thread;
+
+  /**
+   * Constructs a new ChangeWatcher.
+   *
+   * @param replica      the replica whose change log is followed.
+   * @param prefix       the key prefix to be watched; an exact key or "" for all keys.
+   * @param fromSequence the sequence number to start from, or -1 to start with new events.
+   * @param maxBatchSize the maximum number of events handed to the listener at once.
+   * @param listener     the listener receiving the events.
+   */
+  public ChangeWatcher(RemoteInterface replica, String prefix, long fromSequence,
+      int maxBatchSize, Listener listener) {
+    this.replica = replica;
+    this.prefix = prefix;
+    this.nextSequence = fromSequence;
+    this.maxBatchSize = maxBatchSize;
+    this.listener = listener;
+  }
+
+  /**
+   * Starts following the change log in a background thread.
+   */
+  public synchronized void start() {
+    if (running) {
+      return;
+    }
+    running = true;
+    thread = new Thread(this::run, "watch-" + prefix);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Stops following the change log.
+   */
+  public synchronized void stop() {
+    running = false;
+    if (thread != null) {
+      thread.interrupt();
+    }
+  }
+
+  /**
+   * Gets the incarnation id of the change log the watcher follows, to be stored along with
+   * {@link #getNextSequence()}.
+   *
+   * @return the incarnation id, or 0 if no batch has been received yet.
+   */
+  public long getIncarnation() {
+    return incarnation;
+  }
+
+  /**
+   * Gets the sequence number the watcher resumes from, e.g. to store it and continue later.
+   *
+   * @return the sequence number of the first event not handled yet.
+   */
+  public long getNextSequence() {
+    return nextSequence;
+  }
+
+  private void run() {
+    while (running) {
+      try {
+        ChangeBatch batch = replica.watch(prefix, incarnation, nextSequence, maxBatchSize,
+            POLL_WAIT_MS);
+        if (batch.isTruncated()) {
+          listener.onEventsMissed();
+        }
+        if (!batch.getEvents().isEmpty()) {
+          listener.onEvents(batch.getEvents());
+        }
+        incarnation = batch.getIncarnation();
+        nextSequence = batch.getNextSequence();
+      } catch (RemoteException | RuntimeException e) {
+        if (e instanceof RuntimeException) {
+          System.out.println("Watch listener failed, retrying: " + e);
+        }
+        try {
+          Thread.sleep(RETRY_DELAY_MS);
+        } catch (InterruptedException interrupted) {
+          return;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,189 @@
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The ChunkAssembler class stages the pieces of large values that are streamed to a server in
+ * chunks, and puts them back together once the value is committed.
+ * <p>
+ * Sending a large value as a series of chunk RPCs keeps each call short, so small requests of the
+ * same client or coordinator are not held up behind one huge call. Values longer than
+ * {@code kv.chunk.size} characters (default 262144) are chunked. Uploads that are not committed
+ * within {@code kv.chunk.expiryMs} (default 60000) are dropped, and at most
+ * {@code kv.chunk.maxStagedChars} characters (default 67108864) are staged at a time; when a new
+ * chunk does not fit, the least recently updated uploads are dropped first. A dropped upload
+ * cannot be assembled, so its commit fails.
+ */
+public class ChunkAssembler {
+
+  /** The maximum number of characters sent in a single call. */
+  public static final int CHUNK_SIZE = Integer.getInteger("kv.chunk.size", 262144);
+
+  private final long expiryMs;
+  private final long maxStagedChars;
+  // Guarded by this, like stagedChars.
+  private final Map<String, Upload> uploads;
+  private long stagedChars;
+
+  /**
+   * Constructs a new ChunkAssembler using the limits configured through system properties.
+   */
+  public ChunkAssembler() {
+    this(Long.getLong("kv.chunk.expiryMs", 60000L),
+        Long.getLong("kv.chunk.maxStagedChars", 64L * 1024 * 1024));
+  }
+
+  /**
+   * Constructs a new ChunkAssembler.
+   *
+   * @param expiryMs       the time after which an upload that is not updated is dropped.
+   * @param maxStagedChars the maximum number of characters staged over all uploads.
+   */
+  public ChunkAssembler(long expiryMs, long maxStagedChars) {
+    this.expiryMs = expiryMs;
+    this.maxStagedChars = maxStagedChars;
+    this.uploads = new HashMap<>();
+  }
+
+  /**
+   * Sends a message to a replica through {@link RemoteInterface#receiveMessageWithACK}, streaming
+   * it in chunks followed by a short "DO_COMMIT_CHUNKED UPLOAD_ID CHUNK_COUNT" message if it is
+   * longer than {@link #CHUNK_SIZE}.
+   *
+   * @param replica the replica server to which the message is sent.
+   * @param message the message to be sent.
+   * @return true if the ACK is received from the replica, false otherwise.
+   * @throws RemoteException if a remote communication error occurs.
+   */
+  public static boolean sendMessageWithACK(RemoteInterface replica, String message)
+      throws RemoteException {
+    if (message.length() <= CHUNK_SIZE) {
+      return replica.receiveMessageWithACK(message);
+    }
+    String uploadId = UUID.randomUUID().toString();
+    List<String> chunks = split(message);
+    for (int i = 0; i < chunks.size(); i++) {
+      replica.putChunk(uploadId, i, chunks.get(i));
+    }
+    return replica.receiveMessageWithACK("DO_COMMIT_CHUNKED " + uploadId + " " + chunks.size());
+  }
+
+  /**
+   * Splits a value into chunks of at most {@link #CHUNK_SIZE} characters.
+   *
+   * @param value the value to be split.
+   * @return the chunks, in order.
+   */
+  public static List<String> split(String value) {
+    List<String> chunks = new ArrayList<>();
+    for (int start = 0; start < value.length(); start += CHUNK_SIZE) {
+      chunks.add(value.substring(start, Math.min(value.length(), start + CHUNK_SIZE)));
+    }
+    return chunks;
+  }
+
+  /**
+   * Stages one chunk of an upload.
+   *
+   * @param uploadId the id of the upload.
+   * @param index    the position of the chunk, starting at 0.
+   * @param chunk    the chunk.
+   */
+  public synchronized void addChunk(String uploadId, int index, String chunk) {
+    expireUploads();
+    Upload upload = uploads.computeIfAbsent(uploadId, id -> new Upload());
+    stagedChars += upload.add(index, chunk);
+    if (stagedChars > maxStagedChars) {
+      evictUploads(upload);
+    }
+  }
+
+  /**
+   * Puts an upload back together and removes it from staging.
+   *
+   * @param uploadId   the id of the upload.
+   * @param chunkCount the number of chunks the upload consists of.
+   * @return the assembled value, or null if the upload is unknown or incomplete.
+   */
+  public String assemble(String uploadId, int chunkCount) {
+    Upload upload;
+    synchronized (this) {
+      expireUploads();
+      upload = uploads.remove(uploadId);
+      if (upload == null) {
+        return null;
+      }
+      stagedChars -= upload.size;
+    }
+    return upload.assemble(chunkCount);
+  }
+
+  private void expireUploads() {
+    long now = System.currentTimeMillis();
+    Iterator<Upload> it = uploads.values().iterator();
+    while (it.hasNext()) {
+      Upload upload = it.next();
+      if (now - upload.lastUpdate > expiryMs) {
+        it.remove();
+        stagedChars -= upload.size;
+      }
+    }
+  }
+
+  /**
+   * Drops the least recently updated uploads until the staged characters fit the limit again.
+   * The upload that has just grown is dropped last, and is dropped too if it does not fit alone.
+   *
+   * @param current the upload that has just received a chunk.
+   */
+  private void evictUploads(Upload current) {
+    List<Map.Entry<String, Upload>> entries = new ArrayList<>(uploads.entrySet());
+    entries.sort(Comparator
+        .comparing((Map.Entry<String, Upload> entry) -> entry.getValue() == current)
+        .thenComparingLong(entry -> entry.getValue().lastUpdate));
+    for (Map.Entry<String, Upload> entry : entries) {
+      if (stagedChars <= maxStagedChars) {
+        return;
+      }
+      uploads.remove(entry.getKey());
+      stagedChars -= entry.getValue().size;
+    }
+  }
+
+  /**
+   * The Upload class holds the chunks of a single upload received so far.
+   */
+  private static class Upload {
+    private final Map<Integer, String> chunks = new HashMap<>();
+    private long lastUpdate = System.currentTimeMillis();
+    private long size;
+
+    private long add(int index, String chunk) {
+      String previous = chunks.put(index, chunk);
+      long added = chunk.length() - (previous == null ? 0 : previous.length());
+      size += added;
+      lastUpdate = System.currentTimeMillis();
+      return added;
+    }
+
+    private String assemble(int chunkCount) {
+      if (chunks.size() != chunkCount) {
+        return null;
+      }
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < chunkCount; i++) {
+        String chunk = chunks.get(i);
+        if (chunk == null) {
+          return null;
+        }
+        sb.append(chunk);
+      }
+      return sb.toString();
+    }
+  }
+}
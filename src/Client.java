@@ -1,11 +1,12 @@
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
+import java.rmi.RemoteException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 import java.util.TimeZone;
+import java.util.UUID;
 
 /**
  * The `Client` class represents a simple RMI client that interacts with a distributed key-value
@@ -16,6 +17,7 @@ import java.util.TimeZone;
  * The client uses a timestamp in UTC format to track the time of each operation.
  */
 public class Client {
+  private static final String[] MENU_OPERATIONS = {"", "PUT", "GET", "DELETE", "MGET"};
 
   /**
    * Gets the current timestamp in UTC format.
@@ -30,51 +32,31 @@ public class Client {
   /**
    * The main method of the `Client` class.
    *
-   * @param args command-line arguments (not used).
+   * @param args the node ids of seed nodes in the format "host:port"; defaults to
+   *             {@code kv.client.seeds} or "localhost:1010".
    */
   public static void main(String[] args) {
     Scanner sc = new Scanner(System.in);
 
     try {
-      // Lists to store replica stubs and their corresponding registry ports.
-      List<RemoteInterface> replicaStubs = new ArrayList<>();
-      List<Integer> replicaRegistryPorts = new ArrayList<>();
-
-      int replicaIndex = 1;
-      boolean foundReplica = true;
-
-      // Connecting to available replicas until no more replicas are found.
-      while (foundReplica) {
-        int registryPort = 1009 + replicaIndex;
-        RemoteInterface replicaStub = connectToReplica(registryPort);
-
-        if (replicaStub != null) {
-          replicaStubs.add(replicaStub);
-          replicaRegistryPorts.add(registryPort);
-          System.out.println("Connected to Server Replica " + replicaIndex);
-        } else {
-          foundReplica = false;
-        }
-
-        replicaIndex++;
-      }
-
-      // If no replicas are found, exit the client.
-      if (replicaStubs.isEmpty()) {
+      // The cluster is found through its membership view, fetched from the seed nodes.
+      List<String> seeds = args.length > 0 ? Arrays.asList(args)
+          : Arrays.asList(System.getProperty("kv.client.seeds", "localhost:1010").split(","));
+      MembershipClient cluster = new MembershipClient(seeds);
+      try {
+        cluster.refresh();
+      } catch (RemoteException e) {
         System.out.println("No replica servers found! Exiting the program...");
         System.exit(0);
       }
-
-      // The coordinator replica is the first replica in the list.
-      RemoteInterface coordinatorStub = replicaStubs.get(0);
-
-      // Registering all other replicas with the coordinator.
-      for (int i = 1; i < replicaStubs.size(); i++) {
-        coordinatorStub.registerReplicaServer(replicaStubs.get(i));
-      }
+      System.out.println("Connected to the cluster: " + cluster.getView());
 
       // Prepopulating Key-Value store with data
-      prepopulateKeyValues(coordinatorStub);
+      prepopulateKeyValues(cluster.getCoordinator());
+
+      // Reads that leave the replica choice to the client are balanced across all replicas.
+      LoadBalancedReader reader = new LoadBalancedReader(cluster.getReplicas());
+      long readerViewVersion = cluster.getView().getVersion();
 
       // Client's main loop to handle user commands.
       while (true) {
@@ -82,101 +64,205 @@ public class Client {
         System.out.println("1. PUT");
         System.out.println("2. GET");
         System.out.println("3. DELETE");
-        System.out.println("4. Exit");
+        System.out.println("4. MGET");
+        System.out.println("5. Cluster status");
+        System.out.println("6. Watch changes");
+        System.out.println("7. Exit");
 
         int option = sc.nextInt();
         sc.nextLine();
 
-        switch (option) {
-          case 1:
-            System.out.println("Enter the values as: key=value");
-            System.out.print("Enter key-value pair: ");
-            String keyValue = sc.nextLine();
-            String[] keyValueArr = keyValue.split("=");
-            String key = keyValueArr[0].trim();
-            String value = keyValueArr[1].trim();
-
-            System.out.println("Choose a replica to connect (1-" + replicaStubs.size() + " only):");
-            int replicaChoicePut = sc.nextInt();
-            sc.nextLine();
-
-            // Checking if the replica choice is valid.
-            if (replicaChoicePut < 1 || replicaChoicePut > replicaStubs.size()) {
-              System.out.println("Invalid replica choice! Please try again.");
-              break;
-            }
+        // Requests are traced from here when sampled, see kv.trace.sampleRate.
+        Span trace = option >= 1 && option <= 4
+            ? Tracing.startTrace("client " + MENU_OPERATIONS[option], "client") : null;
+        try {
+          // The cached view is refreshed whenever a request fails, so later requests see joined
+          // and departed replicas.
+          RemoteInterface coordinatorStub = cluster.getCoordinator();
+          List<RemoteInterface> replicaStubs = cluster.getReplicas();
+          if (cluster.getView().getVersion() != readerViewVersion) {
+            reader = new LoadBalancedReader(replicaStubs);
+            readerViewVersion = cluster.getView().getVersion();
+          }
+
+          switch (option) {
+            case 1:
+              System.out.println("Enter the values as: key=value");
+              System.out.print("Enter key-value pair: ");
+              String keyValue = sc.nextLine();
+              String[] keyValueArr = keyValue.split("=");
+              String key = keyValueArr[0].trim();
+              String value = keyValueArr[1].trim();
+
+              System.out.println("Choose a replica to connect (1-" + replicaStubs.size() + " only):");
+              int replicaChoicePut = sc.nextInt();
+              sc.nextLine();
+
+              // Checking if the replica choice is valid.
+              if (replicaChoicePut < 1 || replicaChoicePut > replicaStubs.size()) {
+                System.out.println("Invalid replica choice! Please try again.");
+                break;
+              }
 
-            RemoteInterface replicaStubPut = replicaStubs.get(replicaChoicePut - 1);
+              RemoteInterface replicaStubPut = replicaStubs.get(replicaChoicePut - 1);
 
-            boolean prepareResult = coordinatorStub.preparePut(key, value);
-            if (prepareResult) {
-              boolean commitResult = coordinatorStub.receivePreparePutResponse(key, value, true);
-              if (commitResult) {
+              ConsistencyLevel putLevel = readConsistencyLevel(sc);
+              if (putLevel == null) {
+                break;
+              }
+
+              if (put(coordinatorStub, key, value, putLevel)) {
                 System.out.println(getCurrentTimestamp() + "PUT request processed.");
               } else {
                 System.out.println(getCurrentTimestamp() + "Failed to process PUT request.");
               }
-            } else {
-              System.out.println(getCurrentTimestamp() + "Failed to process PUT request.");
-            }
-            break;
-
-          case 2:
-            System.out.print("Enter key: ");
-            String k = sc.nextLine();
-
-            System.out.println("Choose a replica to connect (1-" + replicaStubs.size() + " only):");
-            int replicaChoiceGet = sc.nextInt();
-            sc.nextLine();
-
-            // Checking if the replica choice is valid.
-            if (replicaChoiceGet < 1 || replicaChoiceGet > replicaStubs.size()) {
-              System.out.println("Invalid replica choice! Please try again.");
               break;
-            }
 
-            RemoteInterface replicaStubGet = replicaStubs.get(replicaChoiceGet - 1);
+            case 2:
+              System.out.print("Enter key: ");
+              String k = sc.nextLine();
 
-            String getResponse = replicaStubGet.processRequest("GET " + k);
-            System.out.println(getCurrentTimestamp() + "Response: " + getResponse);
-            break;
+              System.out.println("Choose a replica to connect (1-" + replicaStubs.size()
+                  + " only, 0 to pick automatically):");
+              int replicaChoiceGet = sc.nextInt();
+              sc.nextLine();
 
-          case 3:
-            System.out.print("Enter key to delete: ");
-            String deleteKey = sc.nextLine();
+              // Checking if the replica choice is valid.
+              if (replicaChoiceGet < 0 || replicaChoiceGet > replicaStubs.size()) {
+                System.out.println("Invalid replica choice! Please try again.");
+                break;
+              }
 
-            System.out.println("Choose a replica to connect (1-" + replicaStubs.size() + " only):");
-            int replicaChoiceDelete = sc.nextInt();
-            sc.nextLine();
+              ConsistencyLevel getLevel = readConsistencyLevel(sc);
+              if (getLevel == null) {
+                break;
+              }
 
-            // Checking if the replica choice is valid.
-            if (replicaChoiceDelete < 1 || replicaChoiceDelete > replicaStubs.size()) {
-              System.out.println("Invalid replica choice. Please try again.");
+              // Reads above ONE are coordinated by the coordinator, which knows all replicas.
+              try {
+                VersionedValue getResponse;
+                if (getLevel != ConsistencyLevel.ONE) {
+                  getResponse = coordinatorStub.get(k, getLevel);
+                } else if (replicaChoiceGet == 0) {
+                  getResponse = reader.get(k);
+                } else {
+                  getResponse = replicaStubs.get(replicaChoiceGet - 1).get(k, getLevel);
+                }
+                System.out.println(getCurrentTimestamp() + "Response: " + getResponse);
+              } catch (RemoteException e) {
+                System.out.println(getCurrentTimestamp() + "Failed to process GET request: "
+                    + e.getMessage());
+                refreshView(cluster);
+              }
               break;
-            }
 
-            RemoteInterface replicaStubDelete = replicaStubs.get(replicaChoiceDelete - 1);
+            case 3:
+              System.out.print("Enter key to delete: ");
+              String deleteKey = sc.nextLine();
+
+              System.out.println("Choose a replica to connect (1-" + replicaStubs.size() + " only):");
+              int replicaChoiceDelete = sc.nextInt();
+              sc.nextLine();
+
+              // Checking if the replica choice is valid.
+              if (replicaChoiceDelete < 1 || replicaChoiceDelete > replicaStubs.size()) {
+                System.out.println("Invalid replica choice. Please try again.");
+                break;
+              }
+
+              RemoteInterface replicaStubDelete = replicaStubs.get(replicaChoiceDelete - 1);
+
+              ConsistencyLevel deleteLevel = readConsistencyLevel(sc);
+              if (deleteLevel == null) {
+                break;
+              }
 
-            boolean prepareResult2 = coordinatorStub.prepareDelete(deleteKey);
-            if (prepareResult2) {
-              boolean commitResult = coordinatorStub.receivePrepareDeleteResponse(deleteKey, true);
-              if (commitResult) {
+              if (coordinatorStub.delete(deleteKey, deleteLevel)) {
                 System.out.println(getCurrentTimestamp() + "DELETE request processed.");
               } else {
                 System.out.println(getCurrentTimestamp() + "Failed to process DELETE request.");
               }
-            } else {
-              System.out.println(getCurrentTimestamp() + "Failed to process DELETE request.");
-            }
-            break;
-
-          case 4:
-            System.out.println("Exiting...");
-            System.exit(0);
-
-          default:
-            System.out.println("Invalid option! Please try again.");
-            break;
+              break;
+
+            case 4:
+              System.out.print("Enter keys separated by spaces: ");
+              List<String> keys = Arrays.asList(sc.nextLine().trim().split("\\s+"));
+
+              ConsistencyLevel mgetLevel = readConsistencyLevel(sc);
+              if (mgetLevel == null) {
+                break;
+              }
+
+              try {
+                MultiGetResult mgetResponse = coordinatorStub.multiGet(keys, mgetLevel);
+                System.out.println(getCurrentTimestamp() + "Response:");
+                for (Map.Entry<String, VersionedValue> entry : mgetResponse.asMap().entrySet()) {
+                  System.out.println("  " + entry.getKey() + ": " + entry.getValue());
+                }
+              } catch (RemoteException e) {
+                System.out.println(getCurrentTimestamp() + "Failed to process MGET request: "
+                    + e.getMessage());
+                refreshView(cluster);
+              }
+              break;
+
+            case 5:
+              System.out.println(getCurrentTimestamp() + "Membership view: " + cluster.refresh());
+              Map<String, String> membership = coordinatorStub.getClusterMembership();
+              System.out.println(getCurrentTimestamp() + "Cluster membership:");
+              for (Map.Entry<String, String> member : membership.entrySet()) {
+                System.out.println("  " + member.getKey() + " " + member.getValue());
+              }
+              System.out.println("Hot keys on the coordinator:");
+              for (Map.Entry<String, Long> hotKey : coordinatorStub.getHotKeys().entrySet()) {
+                System.out.println("  " + hotKey.getKey() + " ~" + hotKey.getValue() + " requests");
+              }
+              System.out.println("Read latency by replica:");
+              for (String line : reader.describeReplicas()) {
+                System.out.println("  " + line);
+              }
+              System.out.println("Slowest traced requests:");
+              for (List<Span> slowTrace : TraceCollector.getSlowTraces(0, 3)) {
+                for (String line : TraceCollector.format(slowTrace)) {
+                  System.out.println("  " + line);
+                }
+              }
+              break;
+
+            case 6:
+              System.out.print("Enter a key or key prefix to watch (empty for all keys): ");
+              String prefix = sc.nextLine().trim();
+
+              // Changes are printed in the background as they are committed on the coordinator.
+              new ChangeWatcher(coordinatorStub, prefix, -1, 100, new ChangeWatcher.Listener() {
+                @Override
+                public void onEvents(List<ChangeEvent> events) {
+                  for (ChangeEvent event : events) {
+                    System.out.println(getCurrentTimestamp() + "Change: " + event);
+                  }
+                }
+
+                @Override
+                public void onEventsMissed() {
+                  System.out.println(getCurrentTimestamp() + "Some changes were missed.");
+                }
+              }).start();
+              System.out.println("Watching " + (prefix.isEmpty() ? "all keys" : prefix + "*") + ".");
+              break;
+
+            case 7:
+              System.out.println("Exiting...");
+              System.exit(0);
+
+            default:
+              System.out.println("Invalid option! Please try again.");
+              break;
+          }
+        } catch (RemoteException e) {
+          System.out.println(getCurrentTimestamp() + "Request failed: " + e.getMessage());
+          refreshView(cluster);
+        } finally {
+          Tracing.finish(trace);
         }
 
         System.out.println("-------------------------------------");
@@ -190,20 +276,58 @@ public class Client {
   }
 
   /**
-   * Connects to a replica server using the provided registry port.
+   * Asks the user for the consistency level of the next operation.
    *
-   * @param registryPort the registry port of the replica server.
-   * @return the stub of the connected replica server, or null if the connection failed.
+   * @param sc the scanner reading the user input.
+   * @return the chosen consistency level, or null if the input was invalid.
    */
-  private static RemoteInterface connectToReplica(int registryPort) {
+  private static ConsistencyLevel readConsistencyLevel(Scanner sc) {
+    System.out.println("Choose a consistency level (ONE, QUORUM, ALL):");
     try {
-      Registry registry = LocateRegistry.getRegistry("localhost", registryPort);
-      return (RemoteInterface) registry.lookup("RemoteInterface");
-    } catch (Exception e) {
+      return ConsistencyLevel.parse(sc.nextLine());
+    } catch (IllegalArgumentException e) {
+      System.out.println("Invalid consistency level! Please try again.");
       return null;
     }
   }
 
+  /**
+   * Refreshes the client's cached membership view after a failed request.
+   *
+   * @param cluster the client's view of the cluster.
+   */
+  private static void refreshView(MembershipClient cluster) {
+    try {
+      System.out.println("Refreshed the cluster view: " + cluster.refresh());
+    } catch (RemoteException e) {
+      System.out.println("No replica servers reachable: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Performs a PUT on the coordinator. Values longer than the chunk size are uploaded in chunks
+   * first, so a large value does not hold up other requests on the same connection.
+   *
+   * @param coordinatorStub the coordinator replica to interact with.
+   * @param key             the key for the new key-value pair.
+   * @param value           the value for the new key-value pair.
+   * @param level           the consistency level of the write.
+   * @return true if the PUT was committed on enough replicas, false otherwise.
+   * @throws RemoteException if a remote communication error occurs.
+   */
+  private static boolean put(RemoteInterface coordinatorStub, String key, String value,
+      ConsistencyLevel level) throws RemoteException {
+    if (value.length() <= ChunkAssembler.CHUNK_SIZE) {
+      return coordinatorStub.put(key, value, level);
+    }
+    String uploadId = UUID.randomUUID().toString();
+    List<String> chunks = ChunkAssembler.split(value);
+    for (int i = 0; i < chunks.size(); i++) {
+      coordinatorStub.putChunk(uploadId, i, chunks.get(i));
+    }
+    return coordinatorStub.putChunked(key, uploadId, chunks.size(), level);
+  }
+
   /**
    * Prepopulates the Key-Value store with 5 PUT, GET, and DELETE commands.
    *
@@ -0,0 +1,475 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The ClusterSimulator class runs a cluster of {@link Server} instances in one process over a
+ * {@link SimulatedNetwork}, drives scripted workloads against it, and checks the results, so that
+ * performance and correctness regressions in the commit path are caught without starting RMI
+ * servers by hand.
+ * <p>
+ * A script is a list of commands, one per line, with {@code #} starting a comment:
+ * <ul>
+ *   <li>{@code seed N} - the seed of the network faults and workloads (default 42).</li>
+ *   <li>{@code nodes N} - starts a cluster of N servers, node1 being the coordinator.</li>
+ *   <li>{@code latency MIN MAX} - adds MIN to MAX milliseconds to every call.</li>
+ *   <li>{@code loss P} - loses a fraction P of requests and responses.</li>
+ *   <li>{@code slow NODE MS} - adds MS milliseconds to every call to NODE.</li>
+ *   <li>{@code partition NODE NODE} - cuts the link between two nodes; "client" names the
+ *   workload's link to the coordinator.</li>
+ *   <li>{@code heal} - removes losses, slow nodes and partitions.</li>
+ *   <li>{@code sleep MS} - waits, e.g. for the failure detector to notice a fault.</li>
+ *   <li>{@code workload ops=N threads=T keys=K put=P delete=D hot=H level=L} - runs N operations
+ *   from T threads over K keys. A fraction P of them are PUTs and D are DELETEs, the rest GETs;
+ *   a fraction H goes to a single hot key. All run at consistency level L.</li>
+ *   <li>{@code expect throughput>=X}, {@code expect p50|p95|p99|max<=MS},
+ *   {@code expect errors<=F} - checks the last workload's operations per second, latency
+ *   percentiles, and fraction of failed operations. A PUT or DELETE refused by its precondition
+ *   does not count as failed, but one that passed it and then missed its quorum does.</li>
+ *   <li>{@code expect no-phantoms} - every value read was written by some PUT.</li>
+ *   <li>{@code expect monotonic} - no worker read an older version of a key after a newer one.</li>
+ *   <li>{@code expect converged within=MS} - all servers hold the same data within MS
+ *   milliseconds.</li>
+ * </ul>
+ * <p>
+ * Usage: {@code java ClusterSimulator [SCRIPT_FILE]}. Without a script, a built-in scenario is
+ * run. The process exits with status 1 if any expectation fails. Server logs are hidden unless
+ * {@code kv.sim.verbose} is set.
+ */
+public class ClusterSimulator {
+  private static final String DEFAULT_SCRIPT = String.join("\n",
+      "# Baseline",
+      "seed 42",
+      "nodes 5",
+      "latency 1 2",
+      "workload ops=2000 threads=8 keys=200 put=0.4 delete=0.1 level=QUORUM",
+      "expect errors<=0",
+      "expect throughput>=100",
+      "expect p99<=250",
+      "expect no-phantoms",
+      "expect monotonic",
+      "expect converged within=10000",
+      "",
+      "# Lost requests and responses",
+      "loss 0.02",
+      "workload ops=1000 threads=8 keys=200 put=0.4 delete=0.1 level=QUORUM",
+      "expect errors<=0.05",
+      "expect no-phantoms",
+      "expect monotonic",
+      "heal",
+      "expect converged within=15000",
+      "",
+      "# A slow replica must not slow down QUORUM writes",
+      "slow node4 200",
+      "workload ops=1000 threads=8 keys=200 put=0.4 delete=0.1 level=QUORUM",
+      "expect errors<=0",
+      "expect p95<=150",
+      "heal",
+      "expect converged within=15000",
+      "",
+      "# A replica cut off from the coordinator",
+      "partition node1 node5",
+      "sleep 1000",
+      "workload ops=1000 threads=8 keys=200 put=0.4 delete=0.1 level=QUORUM",
+      "expect errors<=0.02",
+      "expect no-phantoms",
+      "heal",
+      "expect converged within=15000",
+      "",
+      "# Contended hot key",
+      "workload ops=2000 threads=16 keys=50 put=0.3 delete=0.2 hot=0.5 level=QUORUM",
+      "expect errors<=0",
+      "expect throughput>=100",
+      "expect no-phantoms",
+      "expect monotonic",
+      "expect converged within=10000");
+
+  private final PrintStream out;
+  private long seed = 42;
+  private SimulatedNetwork network;
+  private List<Server> servers;
+  private RemoteInterface coordinator;
+  private int keyCount;
+  private WorkloadResult lastResult;
+  // Every value written by any workload so far, to detect values that were never written.
+  private final Set<String> writtenValues = ConcurrentHashMap.newKeySet();
+  private int failures;
+
+  /**
+   * Constructs a new ClusterSimulator.
+   *
+   * @param out the stream the report is printed to.
+   */
+  public ClusterSimulator(PrintStream out) {
+    this.out = out;
+  }
+
+  /**
+   * The main method to run a script against a simulated cluster.
+   *
+   * @param args the path of the script file, or nothing to run the built-in scenario.
+   * @throws IOException if the script file could not be read.
+   */
+  public static void main(String[] args) throws IOException {
+    // Fault detection and repair run faster than in production so that scenarios stay short.
+    setDefault("kv.fd.heartbeatIntervalMs", "100");
+    setDefault("kv.ae.intervalMs", "500");
+    setDefault("kv.replication.timeoutMs", "1000");
+
+    String script = args.length > 0
+        ? new String(Files.readAllBytes(Paths.get(args[0]))) : DEFAULT_SCRIPT;
+    PrintStream out = System.out;
+    if (!Boolean.getBoolean("kv.sim.verbose")) {
+      System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    ClusterSimulator simulator = new ClusterSimulator(out);
+    int failures = simulator.run(script);
+    out.println(failures == 0 ? "All expectations met." : failures + " expectation(s) failed.");
+    System.exit(failures == 0 ? 0 : 1);
+  }
+
+  /**
+   * Runs a script.
+   *
+   * @param script the script to be run.
+   * @return the number of failed expectations.
+   */
+  public int run(String script) {
+    String[] lines = script.split("\n");
+    for (int i = 0; i < lines.length; i++) {
+      String line = lines[i].replaceAll("#.*", "").trim();
+      if (line.isEmpty()) {
+        continue;
+      }
+      try {
+        execute(line.split("\\s+"));
+      } catch (RuntimeException e) {
+        throw new IllegalArgumentException("Line " + (i + 1) + ": " + line + ": " + e, e);
+      }
+    }
+    return failures;
+  }
+
+  private void execute(String[] command) {
+    switch (command[0]) {
+      case "seed":
+        seed = Long.parseLong(command[1]);
+        break;
+      case "nodes":
+        startCluster(Integer.parseInt(command[1]));
+        break;
+      case "latency":
+        network.setLatency(Integer.parseInt(command[1]), Integer.parseInt(command[2]));
+        out.println("Latency " + command[1] + "-" + command[2] + " ms");
+        break;
+      case "loss":
+        network.setLossRate(Double.parseDouble(command[1]));
+        out.println("Loss rate " + command[1]);
+        break;
+      case "slow":
+        network.slowDown(command[1], Integer.parseInt(command[2]));
+        out.println("Slowed down " + command[1] + " by " + command[2] + " ms");
+        break;
+      case "partition":
+        network.partition(command[1], command[2]);
+        out.println("Partitioned " + command[1] + " from " + command[2]);
+        break;
+      case "heal":
+        network.heal();
+        out.println("Healed the network");
+        break;
+      case "sleep":
+        sleep(Long.parseLong(command[1]));
+        break;
+      case "workload":
+        lastResult = runWorkload(parseOptions(command));
+        out.println(lastResult);
+        break;
+      case "expect":
+        check(command[1], command.length > 2 ? parseOptions(command) : Collections.emptyMap());
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown command " + command[0]);
+    }
+  }
+
+  /**
+   * Starts the servers and connects the replicas to the coordinator through the network.
+   */
+  private void startCluster(int nodes) {
+    network = new SimulatedNetwork(seed);
+    servers = new ArrayList<>();
+    for (int i = 1; i <= nodes; i++) {
+      servers.add(new Server("node" + i));
+    }
+    Server coordinatorServer = servers.get(0);
+    for (int i = 1; i < nodes; i++) {
+      coordinatorServer.registerReplicaServer(
+          network.link("node1", "node" + (i + 1), servers.get(i)));
+    }
+    coordinator = network.link("client", "node1", coordinatorServer);
+    out.println("Started " + nodes + " nodes, node1 is the coordinator");
+  }
+
+  /**
+   * Runs a workload from several threads against the coordinator and collects its statistics.
+   */
+  private WorkloadResult runWorkload(Map<String, String> options) {
+    int ops = Integer.parseInt(options.getOrDefault("ops", "1000"));
+    int threads = Integer.parseInt(options.getOrDefault("threads", "8"));
+    keyCount = Integer.parseInt(options.getOrDefault("keys", "100"));
+    double putRate = Double.parseDouble(options.getOrDefault("put", "0.3"));
+    double deleteRate = Double.parseDouble(options.getOrDefault("delete", "0.1"));
+    double hotRate = Double.parseDouble(options.getOrDefault("hot", "0"));
+    ConsistencyLevel level = ConsistencyLevel.parse(options.getOrDefault("level", "QUORUM"));
+
+    WorkloadResult result = new WorkloadResult(ops);
+    // Both refused and failed writes return false, so failed ones are counted by the coordinator.
+    long failedCommitsBefore = servers.get(0).getFailedCommits();
+    AtomicInteger opIndex = new AtomicInteger();
+    CountDownLatch done = new CountDownLatch(threads);
+    long start = System.nanoTime();
+    for (int t = 0; t < threads; t++) {
+      int worker = t;
+      Thread thread = new Thread(() -> {
+        Random random = new Random(seed * 1_000_003 + worker);
+        Map<String, Long> lastVersions = new HashMap<>();
+        try {
+          int i;
+          while ((i = opIndex.getAndIncrement()) < ops) {
+            String key = "key" + (random.nextDouble() < hotRate ? 0 : random.nextInt(keyCount));
+            double kind = random.nextDouble();
+            long opStart = System.nanoTime();
+            int outcome;
+            try {
+              if (kind < putRate) {
+                String value = "w" + worker + "-" + i;
+                writtenValues.add(value);
+                outcome = coordinator.put(key, value, level) ? 1 : 0;
+              } else if (kind < putRate + deleteRate) {
+                outcome = coordinator.delete(key, level) ? 1 : 0;
+              } else {
+                VersionedValue value = coordinator.get(key, level);
+                outcome = 1;
+                checkRead(result, lastVersions, key, value);
+              }
+            } catch (RemoteException e) {
+              outcome = -1;
+            }
+            result.record(i, System.nanoTime() - opStart, outcome);
+          }
+        } finally {
+          done.countDown();
+        }
+      }, "sim-worker-" + t);
+      thread.setDaemon(true);
+      thread.start();
+    }
+    try {
+      done.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    result.elapsedNanos = System.nanoTime() - start;
+    result.failedCommits = (int) (servers.get(0).getFailedCommits() - failedCommitsBefore);
+    return result;
+  }
+
+  /**
+   * Checks a value read by a worker for values that were never written and for versions older
+   * than one the worker has seen before.
+   */
+  private void checkRead(WorkloadResult result, Map<String, Long> lastVersions, String key,
+      VersionedValue value) {
+    if (value.isPresent() && !writtenValues.contains(value.getValue())) {
+      result.phantoms.incrementAndGet();
+    }
+    Long last = lastVersions.put(key, value.getVersion());
+    if (last != null && value.getVersion() < last) {
+      result.staleReads.incrementAndGet();
+    }
+  }
+
+  private void check(String expectation, Map<String, String> options) {
+    String[] parts = expectation.split("(?=[<>]=)|(?<=[<>]=)");
+    String name = parts[0];
+    boolean met;
+    String actual;
+    switch (name) {
+      case "throughput":
+        actual = String.format("%.0f ops/s", lastResult.throughput());
+        met = lastResult.throughput() >= Double.parseDouble(parts[2]);
+        break;
+      case "p50":
+      case "p95":
+      case "p99":
+      case "max":
+        double percentile = name.equals("max") ? 1.0 : Integer.parseInt(name.substring(1)) / 100.0;
+        double latencyMs = lastResult.percentileMs(percentile);
+        actual = String.format("%.1f ms", latencyMs);
+        met = latencyMs <= Double.parseDouble(parts[2]);
+        break;
+      case "errors":
+        actual = String.format("%.3f", lastResult.errorRate());
+        met = lastResult.errorRate() <= Double.parseDouble(parts[2]);
+        break;
+      case "no-phantoms":
+        actual = lastResult.phantoms.get() + " phantom reads";
+        met = lastResult.phantoms.get() == 0;
+        break;
+      case "monotonic":
+        actual = lastResult.staleReads.get() + " stale reads";
+        met = lastResult.staleReads.get() == 0;
+        break;
+      case "converged":
+        long timeoutMs = Long.parseLong(options.getOrDefault("within", "10000"));
+        long convergedMs = awaitConvergence(timeoutMs);
+        actual = convergedMs < 0 ? "diverged after " + timeoutMs + " ms"
+            : "converged in " + convergedMs + " ms";
+        met = convergedMs >= 0;
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown expectation " + name);
+    }
+    if (!met) {
+      failures++;
+    }
+    out.println((met ? "  PASS " : "  FAIL ") + expectation + " (" + actual + ")");
+  }
+
+  /**
+   * Waits until all servers hold the same value and version for every key and the same Merkle
+   * root.
+   *
+   * @return the time it took in milliseconds, or -1 if the servers did not converge in time.
+   */
+  private long awaitConvergence(long timeoutMs) {
+    long start = System.currentTimeMillis();
+    while (!converged()) {
+      if (System.currentTimeMillis() - start > timeoutMs) {
+        return -1;
+      }
+      sleep(100);
+    }
+    return System.currentTimeMillis() - start;
+  }
+
+  private boolean converged() {
+    Server reference = servers.get(0);
+    long[] root = reference.getMerkleHashes(0, new int[] {0});
+    for (Server server : servers.subList(1, servers.size())) {
+      if (!Arrays.equals(root, server.getMerkleHashes(0, new int[] {0}))) {
+        return false;
+      }
+      for (int i = 0; i < keyCount; i++) {
+        if (!reference.readLocal("key" + i).equals(server.readLocal("key" + i))) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  private static Map<String, String> parseOptions(String[] command) {
+    Map<String, String> options = new HashMap<>();
+    for (String option : Arrays.copyOfRange(command, command[0].equals("expect") ? 2 : 1,
+        command.length)) {
+      String[] nameValue = option.split("=", 2);
+      options.put(nameValue[0], nameValue[1]);
+    }
+    return options;
+  }
+
+  private static void setDefault(String property, String value) {
+    if (System.getProperty(property) == null) {
+      System.setProperty(property, value);
+    }
+  }
+
+  private static void sleep(long ms) {
+    try {
+      Thread.sleep(ms);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * The WorkloadResult class collects the outcome and latency of every operation of a workload.
+   */
+  private static class WorkloadResult {
+    private final long[] latencies;
+    // 1 for a completed operation, 0 for a PUT or DELETE that returned false, -1 for an operation
+    // that threw.
+    private final int[] outcomes;
+    // The PUTs and DELETEs that returned false because they missed their quorum rather than
+    // because of their precondition.
+    private int failedCommits;
+    private final AtomicInteger phantoms = new AtomicInteger();
+    private final AtomicInteger staleReads = new AtomicInteger();
+    private long elapsedNanos;
+
+    private WorkloadResult(int ops) {
+      this.latencies = new long[ops];
+      this.outcomes = new int[ops];
+    }
+
+    private void record(int op, long latencyNanos, int outcome) {
+      latencies[op] = latencyNanos;
+      outcomes[op] = outcome;
+    }
+
+    private double throughput() {
+      return latencies.length / (elapsedNanos / 1e9);
+    }
+
+    private double errorRate() {
+      return failed() / (double) outcomes.length;
+    }
+
+    private int failed() {
+      return Math.min(outcomes.length, count(-1) + failedCommits);
+    }
+
+    private double percentileMs(double percentile) {
+      long[] sorted = latencies.clone();
+      Arrays.sort(sorted);
+      int index = (int) Math.ceil(percentile * sorted.length) - 1;
+      return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+    }
+
+    private int count(int outcome) {
+      int count = 0;
+      for (int o : outcomes) {
+        if (o == outcome) {
+          count++;
+        }
+      }
+      return count;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("Workload: %d ops in %.2f s, %.0f ops/s, %d done, %d refused, "
+              + "%d failed, p50=%.1f ms p95=%.1f ms p99=%.1f ms max=%.1f ms",
+          latencies.length, elapsedNanos / 1e9, throughput(), count(1),
+          Math.max(0, count(0) - failedCommits), failed(),
+          percentileMs(0.5), percentileMs(0.95), percentileMs(0.99), percentileMs(1.0));
+    }
+  }
+}
@@ -0,0 +1,45 @@
+/**
+ * The ConsistencyLevel enum defines how many replicas have to take part in a read or write before
+ * the coordinator answers the client.
+ * <p>
+ * The coordinator always counts as one of the replicas. Replicas that do not have to answer before
+ * the client is served still receive the write asynchronously.
+ */
+public enum ConsistencyLevel {
+  /** Only the coordinator has to answer. */
+  ONE,
+  /** A majority of all registered replicas, including the coordinator, has to answer. */
+  QUORUM,
+  /** Every registered replica has to answer, so ALL fails while a replica is suspected. */
+  ALL;
+
+  /**
+   * Gets the number of replica answers the coordinator has to wait for, not counting itself.
+   *
+   * @param registeredReplicas the number of replicas registered with the coordinator.
+   * @param activeReplicas     the number of those replicas that are currently available.
+   * @return the number of answers to wait for, or -1 if not enough replicas are available.
+   */
+  public int requiredReplicaAnswers(int registeredReplicas, int activeReplicas) {
+    switch (this) {
+      case ONE:
+        return 0;
+      case QUORUM:
+        int required = (registeredReplicas + 1) / 2;
+        return activeReplicas >= required ? required : -1;
+      default:
+        return activeReplicas >= registeredReplicas ? registeredReplicas : -1;
+    }
+  }
+
+  /**
+   * Parses a consistency level, ignoring case and surrounding whitespace.
+   *
+   * @param level the name of the consistency level.
+   * @return the consistency level.
+   * @throws IllegalArgumentException if the name is not a known consistency level.
+   */
+  public static ConsistencyLevel parse(String level) {
+    return valueOf(level.trim().toUpperCase());
+  }
+}
@@ -0,0 +1,401 @@
+import java.rmi.RemoteException;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The FailureDetector class implements a heartbeat-based phi-accrual failure detector used by the
+ * coordinator to track the liveness of its replica servers.
+ * <p>
+ * Every replica is sent a heartbeat at a fixed interval. The detector keeps a sliding window of
+ * heartbeat inter-arrival times per replica and derives a suspicion level (phi) from the time since
+ * the last heartbeat. A replica whose phi crosses the threshold, or whose RPCs on the commit path
+ * failed several times in a row, is marked SUSPECT and taken out of the synchronous commit path. A
+ * single lost call is not enough, so a healthy replica is not dropped for a transient network
+ * error. Once a SUSPECT replica answers a heartbeat again, the {@link Listener} is asked to catch
+ * it up and mark it ALIVE.
+ * <p>
+ * The timing is configured through the following system properties:
+ * <ul>
+ *   <li>{@code kv.fd.heartbeatIntervalMs} - interval between heartbeats (default 500).</li>
+ *   <li>{@code kv.fd.phiThreshold} - phi value above which a replica is suspected (default 5).</li>
+ *   <li>{@code kv.fd.windowSize} - number of inter-arrival samples kept per replica (default 100).</li>
+ *   <li>{@code kv.fd.maxRpcFailures} - number of consecutive failed RPCs after which a replica is
+ *   suspected (default 3).</li>
+ * </ul>
+ */
+public class FailureDetector {
+
+  /**
+   * The liveness state of a replica as seen by the coordinator.
+   */
+  public enum ReplicaState {
+    ALIVE,
+    SUSPECT
+  }
+
+  /**
+   * Callback used by the detector to notify the coordinator about state changes.
+   */
+  public interface Listener {
+
+    /**
+     * Called when a replica has been marked SUSPECT.
+     *
+     * @param replica the suspected replica.
+     */
+    void onSuspect(RemoteInterface replica);
+
+    /**
+     * Called when a SUSPECT replica answers heartbeats again. The listener catches the replica up
+     * and calls {@link FailureDetector#markAlive(RemoteInterface)} once it may rejoin the commit
+     * path. If the catch-up fails, the replica stays SUSPECT and is retried on the next heartbeat.
+     *
+     * @param replica the recovered replica.
+     */
+    void onRecover(RemoteInterface replica);
+  }
+
+  private final long heartbeatIntervalMs;
+  private final double phiThreshold;
+  private final int windowSize;
+  private final int maxRpcFailures;
+  private final Listener listener;
+  private final Map<RemoteInterface, HeartbeatHistory> histories;
+  private ScheduledExecutorService scheduler;
+  private ExecutorService heartbeatPool;
+
+  /**
+   * Constructs a new FailureDetector using the timing configured through system properties.
+   *
+   * @param listener the callback notified about suspicions and recoveries.
+   */
+  public FailureDetector(Listener listener) {
+    this(Long.getLong("kv.fd.heartbeatIntervalMs", 500L),
+        Double.parseDouble(System.getProperty("kv.fd.phiThreshold", "5")),
+        Integer.getInteger("kv.fd.windowSize", 100),
+        Integer.getInteger("kv.fd.maxRpcFailures", 3),
+        listener);
+  }
+
+  /**
+   * Constructs a new FailureDetector with explicit timing.
+   *
+   * @param heartbeatIntervalMs the interval between heartbeats in milliseconds.
+   * @param phiThreshold        the phi value above which a replica is suspected.
+   * @param windowSize          the number of inter-arrival samples kept per replica.
+   * @param maxRpcFailures      the number of consecutive failed RPCs after which a replica is
+   *                            suspected.
+   * @param listener            the callback notified about suspicions and recoveries.
+   */
+  public FailureDetector(long heartbeatIntervalMs, double phiThreshold, int windowSize,
+      int maxRpcFailures, Listener listener) {
+    this.heartbeatIntervalMs = heartbeatIntervalMs;
+    this.phiThreshold = phiThreshold;
+    this.windowSize = windowSize;
+    this.maxRpcFailures = Math.max(1, maxRpcFailures);
+    this.listener = listener;
+    this.histories = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Starts the periodic heartbeat task. Calling this method more than once has no effect.
+   */
+  public synchronized void start() {
+    if (scheduler != null) {
+      return;
+    }
+    scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "failure-detector");
+      t.setDaemon(true);
+      return t;
+    });
+    heartbeatPool = Executors.newCachedThreadPool(r -> {
+      Thread t = new Thread(r, "heartbeat");
+      t.setDaemon(true);
+      return t;
+    });
+    scheduler.scheduleAtFixedRate(this::tick, heartbeatIntervalMs, heartbeatIntervalMs,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stops the periodic heartbeat task.
+   */
+  public synchronized void stop() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+      heartbeatPool.shutdownNow();
+      scheduler = null;
+      heartbeatPool = null;
+    }
+  }
+
+  /**
+   * Starts tracking the given replica. The replica is sent a first heartbeat to learn its node id;
+   * it is considered ALIVE if it answers and SUSPECT otherwise.
+   *
+   * @param replica the replica to be tracked.
+   */
+  public void track(RemoteInterface replica) {
+    if (histories.containsKey(replica)) {
+      return;
+    }
+    HeartbeatHistory history = new HeartbeatHistory(System.currentTimeMillis());
+    try {
+      history.nodeId = replica.heartbeat();
+    } catch (RemoteException e) {
+      history.state = ReplicaState.SUSPECT;
+    }
+    histories.putIfAbsent(replica, history);
+  }
+
+  /**
+   * Starts tracking the given replica, whose node id the caller has just learned from it. No
+   * heartbeat is sent, so this never blocks on the replica; it is considered ALIVE.
+   *
+   * @param replica the replica to be tracked.
+   * @param nodeId  the node id of the replica.
+   */
+  public void track(RemoteInterface replica, String nodeId) {
+    HeartbeatHistory history = new HeartbeatHistory(System.currentTimeMillis());
+    history.nodeId = nodeId;
+    histories.putIfAbsent(replica, history);
+  }
+
+  /**
+   * Stops tracking the given replica.
+   *
+   * @param replica the replica to be forgotten.
+   */
+  public void untrack(RemoteInterface replica) {
+    histories.remove(replica);
+  }
+
+  /**
+   * Checks if the given replica may take part in the synchronous commit path.
+   *
+   * @param replica the replica to be checked.
+   * @return true if the replica is tracked and ALIVE, false otherwise.
+   */
+  public boolean isAvailable(RemoteInterface replica) {
+    HeartbeatHistory history = histories.get(replica);
+    return history != null && history.state == ReplicaState.ALIVE;
+  }
+
+  /**
+   * Records that an RPC to the given replica failed, e.g. on the commit path. The replica is
+   * marked SUSPECT once {@code kv.fd.maxRpcFailures} RPCs in a row have failed without a
+   * successful RPC or heartbeat in between.
+   *
+   * @param replica the replica whose RPC failed.
+   */
+  public void reportFailure(RemoteInterface replica) {
+    HeartbeatHistory history = histories.get(replica);
+    if (history != null && history.failedRpcs.incrementAndGet() >= maxRpcFailures) {
+      suspect(replica, history, maxRpcFailures + " RPC failures in a row");
+    }
+  }
+
+  /**
+   * Records that an RPC to the given replica succeeded, which ends a series of failed RPCs.
+   *
+   * @param replica the replica that answered.
+   */
+  public void reportSuccess(RemoteInterface replica) {
+    HeartbeatHistory history = histories.get(replica);
+    if (history != null) {
+      history.failedRpcs.set(0);
+    }
+  }
+
+  /**
+   * Marks the given SUSPECT replica ALIVE again and restarts its heartbeat history.
+   *
+   * @param replica the replica that has been caught up.
+   */
+  public void markAlive(RemoteInterface replica) {
+    HeartbeatHistory history = histories.get(replica);
+    if (history == null) {
+      return;
+    }
+    synchronized (history) {
+      if (history.state == ReplicaState.ALIVE) {
+        return;
+      }
+      history.reset(System.currentTimeMillis());
+      history.failedRpcs.set(0);
+      history.state = ReplicaState.ALIVE;
+    }
+    System.out.println("Replica " + history.getName() + " rejoined the cluster.");
+  }
+
+  /**
+   * Gets the current suspicion level of the given replica.
+   *
+   * @param replica the replica to be checked.
+   * @return the phi value, or {@code Double.POSITIVE_INFINITY} if the replica is not tracked.
+   */
+  public double phi(RemoteInterface replica) {
+    HeartbeatHistory history = histories.get(replica);
+    if (history == null) {
+      return Double.POSITIVE_INFINITY;
+    }
+    return history.phi(System.currentTimeMillis());
+  }
+
+  /**
+   * Gets a snapshot of the tracked replicas and their states, keyed by node id. Replicas that have
+   * never answered a heartbeat are keyed by their stub instead.
+   *
+   * @return a map from node id to replica state.
+   */
+  public Map<String, ReplicaState> getStates() {
+    Map<String, ReplicaState> states = new LinkedHashMap<>();
+    for (Map.Entry<RemoteInterface, HeartbeatHistory> entry : histories.entrySet()) {
+      HeartbeatHistory history = entry.getValue();
+      String nodeId = history.nodeId != null ? history.nodeId : "unknown " + entry.getKey();
+      states.put(nodeId, history.state);
+    }
+    return states;
+  }
+
+  /**
+   * Sends a heartbeat to every tracked replica and re-evaluates the suspicion of ALIVE replicas.
+   */
+  private void tick() {
+    long now = System.currentTimeMillis();
+    for (Map.Entry<RemoteInterface, HeartbeatHistory> entry : histories.entrySet()) {
+      RemoteInterface replica = entry.getKey();
+      HeartbeatHistory history = entry.getValue();
+
+      if (history.state == ReplicaState.ALIVE && history.phi(now) > phiThreshold) {
+        suspect(replica, history, "phi threshold exceeded");
+      }
+
+      // A replica that has not answered the previous heartbeat yet is not pinged again, so a
+      // hung replica never ties up more than one heartbeat thread.
+      if (!history.inFlight) {
+        history.inFlight = true;
+        heartbeatPool.execute(() -> sendHeartbeat(replica, history));
+      }
+    }
+  }
+
+  /**
+   * Sends a single heartbeat to the given replica and records its arrival.
+   *
+   * @param replica the replica to be pinged.
+   * @param history the heartbeat history of the replica.
+   */
+  private void sendHeartbeat(RemoteInterface replica, HeartbeatHistory history) {
+    try {
+      history.nodeId = replica.heartbeat();
+      history.recordArrival(System.currentTimeMillis());
+      history.failedRpcs.set(0);
+
+      if (history.state == ReplicaState.SUSPECT) {
+        listener.onRecover(replica);
+      }
+    } catch (RemoteException e) {
+      // A missed heartbeat is reflected by a growing phi value.
+    } finally {
+      history.inFlight = false;
+    }
+  }
+
+  /**
+   * Marks the given replica SUSPECT and notifies the listener if its state changed.
+   *
+   * @param replica the replica to be suspected.
+   * @param history the heartbeat history of the replica.
+   * @param reason  the reason printed alongside the state change.
+   */
+  private void suspect(RemoteInterface replica, HeartbeatHistory history, String reason) {
+    synchronized (history) {
+      if (history.state == ReplicaState.SUSPECT) {
+        return;
+      }
+      history.state = ReplicaState.SUSPECT;
+    }
+    System.out.println("Replica " + history.getName() + " is suspected (" + reason + ").");
+    listener.onSuspect(replica);
+  }
+
+  /**
+   * The HeartbeatHistory class keeps the heartbeat inter-arrival samples of a single replica.
+   */
+  private class HeartbeatHistory {
+    private final ArrayDeque<Long> intervals;
+    private long intervalSum;
+    private long lastArrival;
+    private volatile String nodeId;
+    private volatile ReplicaState state;
+    private volatile boolean inFlight;
+    // RPCs on the commit path that failed since the last successful RPC or heartbeat.
+    private final AtomicInteger failedRpcs;
+
+    private HeartbeatHistory(long now) {
+      intervals = new ArrayDeque<>();
+      failedRpcs = new AtomicInteger();
+      state = ReplicaState.ALIVE;
+      reset(now);
+    }
+
+    /**
+     * Gets the node id of the replica for log messages.
+     *
+     * @return the node id, or "unknown" if the replica has never answered a heartbeat.
+     */
+    private String getName() {
+      return nodeId != null ? nodeId : "unknown";
+    }
+
+    /**
+     * Clears the samples and restarts the history at the given time.
+     *
+     * @param now the current time in milliseconds.
+     */
+    private synchronized void reset(long now) {
+      intervals.clear();
+      intervalSum = 0;
+      lastArrival = now;
+    }
+
+    /**
+     * Records a heartbeat that arrived at the given time.
+     *
+     * @param now the arrival time in milliseconds.
+     */
+    private synchronized void recordArrival(long now) {
+      long interval = now - lastArrival;
+      lastArrival = now;
+      intervals.addLast(interval);
+      intervalSum += interval;
+      if (intervals.size() > windowSize) {
+        intervalSum -= intervals.removeFirst();
+      }
+    }
+
+    /**
+     * Computes phi under the assumption of exponentially distributed inter-arrival times, i.e.
+     * {@code phi = -log10(e^(-elapsed / mean))}. Until samples are available the configured
+     * heartbeat interval is used as the mean.
+     *
+     * @param now the current time in milliseconds.
+     * @return the suspicion level of the replica.
+     */
+    private synchronized double phi(long now) {
+      double mean = intervals.isEmpty()
+          ? heartbeatIntervalMs : (double) intervalSum / intervals.size();
+      double elapsed = now - lastArrival;
+      return (elapsed / Math.max(mean, 1.0)) * Math.log10(Math.E);
+    }
+  }
+}
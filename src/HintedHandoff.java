@@ -0,0 +1,93 @@
+import java.rmi.RemoteException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The HintedHandoff class stores commit messages that could not be delivered to a replica, so that
+ * they can be replayed once the replica is reachable again.
+ * <p>
+ * At most {@code kv.hints.maxPerReplica} hints (default 10000) are kept per replica. When a
+ * replica falls further behind, the oldest hints are dropped and the replica is brought up to date
+ * by anti-entropy instead. Since commit messages carry versions, replaying a hint that has been
+ * overtaken by a newer write has no effect. Hints for large values are sent in chunks, like the
+ * commit messages they replace.
+ */
+public class HintedHandoff {
+  private final int maxHintsPerReplica;
+  private final Map<RemoteInterface, Deque<String>> hints;
+
+  /**
+   * Constructs a new HintedHandoff using the limit configured through system properties.
+   */
+  public HintedHandoff() {
+    this.maxHintsPerReplica = Integer.getInteger("kv.hints.maxPerReplica", 10000);
+    this.hints = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Stores a commit message for a replica that could not receive it.
+   *
+   * @param replica the replica the message was meant for.
+   * @param message the commit message.
+   */
+  public void addHint(RemoteInterface replica, String message) {
+    Deque<String> queue = hints.computeIfAbsent(replica, r -> new ArrayDeque<>());
+    synchronized (queue) {
+      queue.addLast(message);
+      if (queue.size() > maxHintsPerReplica) {
+        queue.removeFirst();
+      }
+    }
+  }
+
+  /**
+   * Replays the stored commit messages to the given replica, in the order they were stored.
+   * The hints are taken from the queue before they are sent, so new hints can be stored while the
+   * replay is running. Replay stops at the first failed delivery and puts the undelivered hints
+   * back in front of the queue.
+   *
+   * @param replica the replica to which the hints are replayed.
+   * @return the number of hints delivered.
+   * @throws RemoteException if a remote communication error occurs.
+   */
+  public int replay(RemoteInterface replica) throws RemoteException {
+    Deque<String> queue = hints.get(replica);
+    if (queue == null) {
+      return 0;
+    }
+
+    Deque<String> pending;
+    synchronized (queue) {
+      pending = new ArrayDeque<>(queue);
+      queue.clear();
+    }
+    int delivered = 0;
+    try {
+      while (!pending.isEmpty()) {
+        ChunkAssembler.sendMessageWithACK(replica, pending.peekFirst());
+        pending.removeFirst();
+        delivered++;
+      }
+    } finally {
+      if (!pending.isEmpty()) {
+        synchronized (queue) {
+          while (!pending.isEmpty() && queue.size() < maxHintsPerReplica) {
+            queue.addFirst(pending.removeLast());
+          }
+        }
+      }
+    }
+    return delivered;
+  }
+
+  /**
+   * Drops all hints stored for the given replica.
+   *
+   * @param replica the replica whose hints are dropped.
+   */
+  public void clear(RemoteInterface replica) {
+    hints.remove(replica);
+  }
+}
@@ -0,0 +1,154 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The HotKeyTracker class finds the keys that receive most of the requests of a replica while
+ * traffic is flowing.
+ * <p>
+ * Every access is counted in a Count-Min sketch, which estimates the access count of any key in
+ * fixed memory and never underestimates it. The keys with the highest estimates are kept in a
+ * small top-K table. A key is hot if it is in the table and its estimate has reached
+ * {@code kv.hotkeys.threshold} (default 100). All counts are halved every
+ * {@code kv.hotkeys.decayMs} (default 10000), so keys stop being hot once their traffic drops.
+ * <p>
+ * The table holds {@code kv.hotkeys.topK} keys (default 16), and each of the four sketch rows has
+ * {@code kv.hotkeys.sketchWidth} counters (default 2048).
+ */
+public class HotKeyTracker {
+  private static final int DEPTH = 4;
+
+  private final AtomicLongArray[] sketch;
+  private final int width;
+  private final int topK;
+  private final long threshold;
+  private final long decayMs;
+  private final AtomicLong lastDecay;
+  // Guarded by this. Updated only for keys whose estimate beats the smallest one in the table.
+  private final Map<String, Long> topKeys;
+  private volatile long minTopCount;
+
+  /**
+   * Constructs a new HotKeyTracker using the settings configured through system properties.
+   */
+  public HotKeyTracker() {
+    this.width = Integer.getInteger("kv.hotkeys.sketchWidth", 2048);
+    this.topK = Integer.getInteger("kv.hotkeys.topK", 16);
+    this.threshold = Long.getLong("kv.hotkeys.threshold", 100L);
+    this.decayMs = Long.getLong("kv.hotkeys.decayMs", 10000L);
+    this.sketch = new AtomicLongArray[DEPTH];
+    for (int i = 0; i < DEPTH; i++) {
+      sketch[i] = new AtomicLongArray(width);
+    }
+    this.lastDecay = new AtomicLong(System.currentTimeMillis());
+    this.topKeys = new HashMap<>();
+  }
+
+  /**
+   * Counts an access to a key.
+   *
+   * @param key the key that was accessed.
+   * @return true if the key is hot, false otherwise.
+   */
+  public boolean record(String key) {
+    decayIfDue();
+
+    int hash = key.hashCode();
+    int step = Integer.rotateLeft(hash * 0x9E3779B9, 16) | 1;
+    long estimate = Long.MAX_VALUE;
+    for (int row = 0; row < DEPTH; row++) {
+      int index = Math.floorMod(hash + row * step, width);
+      estimate = Math.min(estimate, sketch[row].incrementAndGet(index));
+    }
+
+    if (estimate <= minTopCount) {
+      return false;
+    }
+    synchronized (this) {
+      if (topKeys.containsKey(key) || topKeys.size() < topK) {
+        topKeys.put(key, estimate);
+      } else {
+        String minKey = null;
+        for (Map.Entry<String, Long> entry : topKeys.entrySet()) {
+          if (minKey == null || entry.getValue() < topKeys.get(minKey)) {
+            minKey = entry.getKey();
+          }
+        }
+        if (estimate <= topKeys.get(minKey)) {
+          return false;
+        }
+        topKeys.remove(minKey);
+        topKeys.put(key, estimate);
+      }
+      updateMinTopCount();
+    }
+    return estimate >= threshold;
+  }
+
+  /**
+   * Checks if a key is currently hot, without counting an access.
+   *
+   * @param key the key to be checked.
+   * @return true if the key is hot, false otherwise.
+   */
+  public synchronized boolean isHot(String key) {
+    Long count = topKeys.get(key);
+    return count != null && count >= threshold;
+  }
+
+  /**
+   * Gets the hot keys, hottest first.
+   *
+   * @return a map from each hot key to its estimated access count in the current decay window.
+   */
+  public synchronized Map<String, Long> getHotKeys() {
+    List<Map.Entry<String, Long>> entries = new ArrayList<>(topKeys.entrySet());
+    entries.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+    Map<String, Long> hotKeys = new LinkedHashMap<>();
+    for (Map.Entry<String, Long> entry : entries) {
+      if (entry.getValue() >= threshold) {
+        hotKeys.put(entry.getKey(), entry.getValue());
+      }
+    }
+    return hotKeys;
+  }
+
+  /**
+   * Halves all counts once per decay interval. Only the caller that wins the update does the work.
+   */
+  private void decayIfDue() {
+    long now = System.currentTimeMillis();
+    long last = lastDecay.get();
+    if (now - last < decayMs || !lastDecay.compareAndSet(last, now)) {
+      return;
+    }
+    for (AtomicLongArray row : sketch) {
+      for (int i = 0; i < width; i++) {
+        row.getAndUpdate(i, count -> count >> 1);
+      }
+    }
+    synchronized (this) {
+      topKeys.replaceAll((key, count) -> count >> 1);
+      topKeys.values().removeIf(count -> count == 0);
+      updateMinTopCount();
+    }
+  }
+
+  /**
+   * Recomputes the smallest count a key needs to enter the top-K table. Must hold the lock.
+   */
+  private void updateMinTopCount() {
+    long min = 0;
+    if (topKeys.size() >= topK) {
+      min = Long.MAX_VALUE;
+      for (long count : topKeys.values()) {
+        min = Math.min(min, count);
+      }
+    }
+    minTopCount = min;
+  }
+}
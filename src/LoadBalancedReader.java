@@ -0,0 +1,170 @@
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The LoadBalancedReader class serves client reads at consistency level ONE from the replica chosen
+ * by a {@link ReplicaSelector}, instead of a replica picked by hand.
+ * <p>
+ * With hedged reads enabled, a read that has not been answered within the p95 response time of
+ * the chosen replica is sent to a second replica as well, and whichever answer arrives first is
+ * used. A read whose first replica fails is retried on a second replica right away.
+ * <p>
+ * Hedging is configured through the following system properties:
+ * <ul>
+ *   <li>{@code kv.client.hedgedReads} - whether to send hedged reads (default false).</li>
+ *   <li>{@code kv.client.hedgeDelayMs} - hedge delay used until a replica has enough samples
+ *   for its p95, and the smallest response time a failed read counts as (default 50).</li>
+ * </ul>
+ */
+public class LoadBalancedReader {
+  private static final int MIN_SAMPLES_FOR_P95 = 20;
+
+  private final List<RemoteInterface> replicas;
+  private final ReplicaSelector selector;
+  private final boolean hedgedReads;
+  private final long defaultHedgeDelayNanos;
+  private final Executor readPool;
+
+  /**
+   * Constructs a new LoadBalancedReader using the settings configured through system properties.
+   *
+   * @param replicas the replicas that can serve reads.
+   */
+  public LoadBalancedReader(List<RemoteInterface> replicas) {
+    this(replicas, Boolean.getBoolean("kv.client.hedgedReads"));
+  }
+
+  /**
+   * Constructs a new LoadBalancedReader.
+   *
+   * @param replicas    the replicas that can serve reads.
+   * @param hedgedReads true to send hedged reads to a second replica.
+   */
+  public LoadBalancedReader(List<RemoteInterface> replicas, boolean hedgedReads) {
+    this.replicas = new ArrayList<>(replicas);
+    this.hedgedReads = hedgedReads;
+    this.defaultHedgeDelayNanos =
+        TimeUnit.MILLISECONDS.toNanos(Long.getLong("kv.client.hedgeDelayMs", 50L));
+    // A failed read counts as at least as slow as a read that would have been hedged.
+    this.selector = new ReplicaSelector(replicas.size(), defaultHedgeDelayNanos);
+    this.readPool = Tracing.propagating(Executors.newCachedThreadPool(r -> {
+      Thread t = new Thread(r, "client-read");
+      t.setDaemon(true);
+      return t;
+    }));
+  }
+
+  /**
+   * Reads a key from the best replica at consistency level ONE.
+   *
+   * @param key the key to be read.
+   * @return the value of the key, together with its version.
+   * @throws RemoteException if no replica could answer the read.
+   */
+  public VersionedValue get(String key) throws RemoteException {
+    int primary = selector.select(-1);
+    if (primary < 0) {
+      throw new RemoteException("No replica available for reads");
+    }
+    CompletableFuture<VersionedValue> first = read(primary, key);
+
+    long hedgeDelay = selector.sampleCount(primary) >= MIN_SAMPLES_FOR_P95
+        ? selector.percentile(primary, 0.95) : defaultHedgeDelayNanos;
+    try {
+      if (hedgedReads) {
+        return first.get(hedgeDelay, TimeUnit.NANOSECONDS);
+      }
+      return first.get();
+    } catch (TimeoutException | ExecutionException e) {
+      // Hedge after the delay, or fail over right away if the first replica failed.
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RemoteException("Interrupted while reading " + key, e);
+    }
+
+    int secondary = selector.select(primary);
+    if (secondary < 0) {
+      return await(first);
+    }
+    CompletableFuture<VersionedValue> second = read(secondary, key);
+    return await(firstSuccessful(first, second));
+  }
+
+  /**
+   * Gets a short description of the statistics of every replica.
+   *
+   * @return one line per replica.
+   */
+  public List<String> describeReplicas() {
+    List<String> lines = new ArrayList<>();
+    for (int i = 0; i < replicas.size(); i++) {
+      lines.add("Replica " + (i + 1) + ": " + selector.describe(i));
+    }
+    return lines;
+  }
+
+  /**
+   * Sends a read to a single replica in the background and records its response time.
+   */
+  private CompletableFuture<VersionedValue> read(int replica, String key) {
+    selector.onStart(replica);
+    long start = System.nanoTime();
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        VersionedValue value = replicas.get(replica).get(key, ConsistencyLevel.ONE);
+        selector.onSuccess(replica, System.nanoTime() - start);
+        return value;
+      } catch (RemoteException e) {
+        selector.onFailure(replica, System.nanoTime() - start);
+        throw new RuntimeException(e);
+      }
+    }, readPool);
+  }
+
+  /**
+   * Completes with the first of the two reads that succeeds, or fails if both fail.
+   */
+  private static CompletableFuture<VersionedValue> firstSuccessful(
+      CompletableFuture<VersionedValue> first, CompletableFuture<VersionedValue> second) {
+    CompletableFuture<VersionedValue> result = new CompletableFuture<>();
+    first.whenComplete((value, error) -> {
+      if (error == null) {
+        result.complete(value);
+      } else {
+        second.whenComplete((otherValue, otherError) -> {
+          if (otherError == null) {
+            result.complete(otherValue);
+          } else {
+            result.completeExceptionally(otherError);
+          }
+        });
+      }
+    });
+    second.thenAccept(result::complete);
+    return result;
+  }
+
+  /**
+   * Waits for a read and unwraps its failure into a RemoteException.
+   */
+  private static VersionedValue await(CompletableFuture<VersionedValue> read)
+      throws RemoteException {
+    try {
+      return read.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause() != null && e.getCause().getCause() != null
+          ? e.getCause().getCause() : e.getCause();
+      throw new RemoteException("No replica could answer the read", cause);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RemoteException("Interrupted while reading", e);
+    }
+  }
+}
@@ -0,0 +1,120 @@
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The MembershipClient class gives a client its cached copy of the cluster's
+ * {@link MembershipView} and the stubs of its members.
+ * <p>
+ * The view is fetched from the first reachable seed node, and from then on from any known member.
+ * Clients call {@link #refresh()} when a request fails, which picks up nodes that joined or left
+ * in the meantime without probing ports.
+ */
+public class MembershipClient {
+  private final List<String> seeds;
+  private MembershipView view;
+  private Map<String, RemoteInterface> stubs;
+
+  /**
+   * Constructs a new MembershipClient.
+   *
+   * @param seeds the node ids of the nodes asked for the view first, in the format "host:port".
+   */
+  public MembershipClient(List<String> seeds) {
+    this.seeds = new ArrayList<>(seeds);
+    this.stubs = new HashMap<>();
+  }
+
+  /**
+   * Fetches the current view from a reachable node and connects to its members. The view with the
+   * highest version among the first reachable known member and the seeds is kept.
+   *
+   * @return the refreshed view.
+   * @throws RemoteException if no node could be reached.
+   */
+  public synchronized MembershipView refresh() throws RemoteException {
+    Set<String> candidates = new LinkedHashSet<>();
+    if (view != null) {
+      candidates.add(view.getCoordinatorId());
+      candidates.addAll(view.getMembers());
+    }
+    candidates.addAll(seeds);
+
+    MembershipView newest = null;
+    RemoteException lastFailure = null;
+    for (String candidate : candidates) {
+      try {
+        MembershipView candidateView = MembershipService.connect(candidate).getMembershipView();
+        if (newest == null || candidateView.getVersion() > newest.getVersion()) {
+          newest = candidateView;
+        }
+        if (candidateView.contains(candidate)) {
+          break;
+        }
+      } catch (RemoteException e) {
+        lastFailure = e;
+      }
+    }
+    if (newest == null) {
+      throw new RemoteException("No cluster member could be reached", lastFailure);
+    }
+
+    Map<String, RemoteInterface> newStubs = new HashMap<>();
+    for (String member : newest.getMembers()) {
+      RemoteInterface stub = stubs.get(member);
+      if (stub == null) {
+        try {
+          stub = MembershipService.connect(member);
+        } catch (RemoteException e) {
+          continue;
+        }
+      }
+      newStubs.put(member, stub);
+    }
+    view = newest;
+    stubs = newStubs;
+    return view;
+  }
+
+  /**
+   * Gets the cached view.
+   *
+   * @return the view, or null if it has not been fetched yet.
+   */
+  public synchronized MembershipView getView() {
+    return view;
+  }
+
+  /**
+   * Gets the stub of the coordinator.
+   *
+   * @return the stub of the coordinator.
+   * @throws RemoteException if the coordinator could not be connected to.
+   */
+  public synchronized RemoteInterface getCoordinator() throws RemoteException {
+    RemoteInterface coordinator = stubs.get(view.getCoordinatorId());
+    if (coordinator == null) {
+      throw new RemoteException("Coordinator " + view.getCoordinatorId() + " is unreachable");
+    }
+    return coordinator;
+  }
+
+  /**
+   * Gets the stubs of all reachable members, in the order of the view.
+   *
+   * @return the stubs, the coordinator included.
+   */
+  public synchronized List<RemoteInterface> getReplicas() {
+    List<RemoteInterface> replicas = new ArrayList<>();
+    for (String member : view.getMembers()) {
+      if (stubs.containsKey(member)) {
+        replicas.add(stubs.get(member));
+      }
+    }
+    return replicas;
+  }
+}
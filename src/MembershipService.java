@@ -0,0 +1,155 @@
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The MembershipService class holds a server's copy of the cluster's {@link MembershipView} and
+ * spreads it by gossip.
+ * <p>
+ * Every {@code kv.gossip.intervalMs} (default 1000), the service exchanges views with a random
+ * other member, and both sides keep the view with the higher version. A membership change made by
+ * the coordinator therefore reaches every node within a few rounds, and clients can fetch the
+ * current view from any node instead of probing for servers.
+ */
+public class MembershipService {
+  private final long intervalMs;
+  private volatile String nodeId;
+  private volatile MembershipView view;
+  private ScheduledExecutorService scheduler;
+
+  /**
+   * Constructs a new MembershipService using the interval configured through system properties.
+   */
+  public MembershipService() {
+    this.intervalMs = Long.getLong("kv.gossip.intervalMs", 1000L);
+    this.view = new MembershipView(0, null, Collections.emptyList());
+  }
+
+  /**
+   * Looks up the server with the given node id in its RMI registry.
+   *
+   * @param nodeId the node id, in the format "host:port".
+   * @return the stub of the server, wrapped for tracing.
+   * @throws RemoteException if the server could not be reached.
+   */
+  public static RemoteInterface connect(String nodeId) throws RemoteException {
+    String[] hostPort = nodeId.split(":", 2);
+    try {
+      return Tracing.wrap((RemoteInterface) LocateRegistry.getRegistry(hostPort[0],
+          Integer.parseInt(hostPort[1])).lookup("RemoteInterface"));
+    } catch (NotBoundException e) {
+      throw new RemoteException("No server bound at " + nodeId, e);
+    }
+  }
+
+  /**
+   * Starts a new cluster with this node as its coordinator and only member.
+   *
+   * @param nodeId the node id of this node.
+   */
+  public void bootstrap(String nodeId) {
+    this.nodeId = nodeId;
+    this.view = new MembershipView(1, nodeId, Collections.singletonList(nodeId));
+  }
+
+  /**
+   * Sets the node id of this node, before it joins an existing cluster.
+   *
+   * @param nodeId the node id of this node.
+   */
+  public void setNodeId(String nodeId) {
+    this.nodeId = nodeId;
+  }
+
+  /**
+   * Gets this node's current view.
+   *
+   * @return the view.
+   */
+  public MembershipView getView() {
+    return view;
+  }
+
+  /**
+   * Adopts the given view if it is newer than the current one.
+   *
+   * @param other the view received from another node.
+   * @return the current view after merging.
+   */
+  public synchronized MembershipView merge(MembershipView other) {
+    if (other != null && other.getVersion() > view.getVersion()) {
+      view = other;
+      System.out.println("Membership view updated to " + other + ".");
+    }
+    return view;
+  }
+
+  /**
+   * Adds a node to the view. Only called on the coordinator.
+   *
+   * @param memberId the node id to be added.
+   * @return the new view.
+   */
+  public synchronized MembershipView addMember(String memberId) {
+    return merge(view.withMember(memberId));
+  }
+
+  /**
+   * Removes a node from the view. Only called on the coordinator.
+   *
+   * @param memberId the node id to be removed.
+   * @return the new view.
+   */
+  public synchronized MembershipView removeMember(String memberId) {
+    return merge(view.withoutMember(memberId));
+  }
+
+  /**
+   * Starts the periodic gossip task. Calling this method more than once has no effect.
+   */
+  public synchronized void start() {
+    if (scheduler != null) {
+      return;
+    }
+    scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "gossip");
+      t.setDaemon(true);
+      return t;
+    });
+    scheduler.scheduleWithFixedDelay(this::gossip, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stops the periodic gossip task.
+   */
+  public synchronized void stop() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+      scheduler = null;
+    }
+  }
+
+  /**
+   * Exchanges views with one random other member.
+   */
+  private void gossip() {
+    List<String> peers = new ArrayList<>(view.getMembers());
+    peers.remove(nodeId);
+    if (peers.isEmpty()) {
+      return;
+    }
+    String peer = peers.get(ThreadLocalRandom.current().nextInt(peers.size()));
+    try {
+      merge(connect(peer).exchangeMembership(view));
+    } catch (RemoteException | RuntimeException e) {
+      // Unreachable peers are the failure detector's business; try another one next round.
+    }
+  }
+}
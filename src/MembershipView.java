@@ -0,0 +1,99 @@
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * The MembershipView class is an immutable snapshot of the nodes that make up the cluster.
+ * <p>
+ * Only the coordinator changes the membership, and every change produces a view with a higher
+ * version. Nodes and clients that hold different views therefore keep the one with the highest
+ * version.
+ */
+public class MembershipView implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private final long version;
+  private final String coordinatorId;
+  private final List<String> members;
+
+  /**
+   * Constructs a new MembershipView.
+   *
+   * @param version       the version of the view.
+   * @param coordinatorId the node id of the coordinator.
+   * @param members       the node ids of all members, including the coordinator.
+   */
+  public MembershipView(long version, String coordinatorId, List<String> members) {
+    this.version = version;
+    this.coordinatorId = coordinatorId;
+    this.members = Collections.unmodifiableList(new ArrayList<>(new TreeSet<>(members)));
+  }
+
+  /**
+   * Gets the version of the view.
+   *
+   * @return the version.
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * Gets the node id of the coordinator.
+   *
+   * @return the node id, in the format "host:port".
+   */
+  public String getCoordinatorId() {
+    return coordinatorId;
+  }
+
+  /**
+   * Gets the node ids of all members, in a stable order.
+   *
+   * @return the node ids, including the coordinator.
+   */
+  public List<String> getMembers() {
+    return members;
+  }
+
+  /**
+   * Checks if a node is a member.
+   *
+   * @param nodeId the node id to be checked.
+   * @return true if the node is a member, false otherwise.
+   */
+  public boolean contains(String nodeId) {
+    return members.contains(nodeId);
+  }
+
+  /**
+   * Gets the view that results from adding a node.
+   *
+   * @param nodeId the node id to be added.
+   * @return the new view with the next version.
+   */
+  public MembershipView withMember(String nodeId) {
+    List<String> newMembers = new ArrayList<>(members);
+    newMembers.add(nodeId);
+    return new MembershipView(version + 1, coordinatorId, newMembers);
+  }
+
+  /**
+   * Gets the view that results from removing a node.
+   *
+   * @param nodeId the node id to be removed.
+   * @return the new view with the next version.
+   */
+  public MembershipView withoutMember(String nodeId) {
+    List<String> newMembers = new ArrayList<>(members);
+    newMembers.remove(nodeId);
+    return new MembershipView(version + 1, coordinatorId, newMembers);
+  }
+
+  @Override
+  public String toString() {
+    return "v" + version + " coordinator=" + coordinatorId + " members=" + members;
+  }
+}
@@ -0,0 +1,156 @@
+import java.util.Map;
+
+/**
+ * The MerkleTree class maintains an incrementally updated hash tree over the key-value store of a
+ * replica, used by anti-entropy to find the key ranges in which two replicas differ.
+ * <p>
+ * Keys are hashed into {@code 2^depth} leaf buckets. A leaf hash is the XOR of the hashes of all
+ * entries in its bucket, so a single PUT or DELETE updates the tree in O(depth) without rehashing
+ * the bucket. Nodes are addressed by level and index, where level 0 holds the root and level
+ * {@code depth} holds the leaves.
+ */
+public class MerkleTree {
+  private final int depth;
+  // Heap-ordered nodes: index 1 is the root and the children of node i are 2i and 2i + 1.
+  private final long[] nodes;
+
+  /**
+   * Constructs a new, empty MerkleTree.
+   *
+   * @param depth the number of levels below the root; the tree has {@code 2^depth} leaf buckets.
+   */
+  public MerkleTree(int depth) {
+    if (depth < 1 || depth > 20) {
+      throw new IllegalArgumentException("Merkle tree depth must be between 1 and 20");
+    }
+    this.depth = depth;
+    this.nodes = new long[1 << (depth + 1)];
+    clear();
+  }
+
+  /**
+   * Gets the number of levels below the root.
+   *
+   * @return the depth of the tree.
+   */
+  public int getDepth() {
+    return depth;
+  }
+
+  /**
+   * Gets the leaf bucket the given key falls into.
+   *
+   * @param key the key to be hashed.
+   * @return the index of the leaf bucket.
+   */
+  public int bucketOf(String key) {
+    return (int) (hash(key) >>> (64 - depth));
+  }
+
+  /**
+   * Updates the tree after the value of a key changed.
+   *
+   * @param key      the key that changed.
+   * @param oldValue the previous value, or null if the key was absent.
+   * @param newValue the new value, or null if the key was removed.
+   */
+  public synchronized void update(String key, String oldValue, String newValue) {
+    long delta = 0;
+    if (oldValue != null) {
+      delta ^= entryHash(key, oldValue);
+    }
+    if (newValue != null) {
+      delta ^= entryHash(key, newValue);
+    }
+    if (delta == 0) {
+      return;
+    }
+
+    int node = (1 << depth) + bucketOf(key);
+    nodes[node] ^= delta;
+    for (node >>>= 1; node >= 1; node >>>= 1) {
+      nodes[node] = combine(nodes[2 * node], nodes[2 * node + 1]);
+    }
+  }
+
+  /**
+   * Rebuilds the tree from scratch for the given key-value store.
+   *
+   * @param keyValueStore the key-value store the tree has to reflect.
+   */
+  public synchronized void rebuild(Map<String, String> keyValueStore) {
+    int leaves = 1 << depth;
+    for (int i = leaves; i < 2 * leaves; i++) {
+      nodes[i] = 0;
+    }
+    for (Map.Entry<String, String> entry : keyValueStore.entrySet()) {
+      nodes[leaves + bucketOf(entry.getKey())] ^= entryHash(entry.getKey(), entry.getValue());
+    }
+    for (int i = leaves - 1; i >= 1; i--) {
+      nodes[i] = combine(nodes[2 * i], nodes[2 * i + 1]);
+    }
+  }
+
+  /**
+   * Gets the hashes of the given nodes on one level of the tree.
+   *
+   * @param level   the level of the nodes, where 0 is the root.
+   * @param indexes the indexes of the nodes within the level.
+   * @return the hashes of the nodes, in the order of {@code indexes}.
+   */
+  public synchronized long[] getHashes(int level, int[] indexes) {
+    if (level < 0 || level > depth) {
+      throw new IllegalArgumentException("Invalid Merkle tree level: " + level);
+    }
+    long[] hashes = new long[indexes.length];
+    for (int i = 0; i < indexes.length; i++) {
+      hashes[i] = nodes[(1 << level) + indexes[i]];
+    }
+    return hashes;
+  }
+
+  /**
+   * Resets the tree to the state of an empty key-value store.
+   */
+  private synchronized void clear() {
+    rebuild(Map.of());
+  }
+
+  /**
+   * Combines the hashes of two child nodes into the hash of their parent.
+   */
+  private static long combine(long left, long right) {
+    return mix(left * 0x9E3779B97F4A7C15L + right);
+  }
+
+  /**
+   * Hashes a single key-value entry.
+   */
+  private static long entryHash(String key, String value) {
+    return mix(hash(key) * 31 + hash(value));
+  }
+
+  /**
+   * Computes the 64-bit FNV-1a hash of a string.
+   */
+  private static long hash(String s) {
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0; i < s.length(); i++) {
+      h ^= s.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    return mix(h);
+  }
+
+  /**
+   * Spreads the bits of a hash (the MurmurHash3 finalizer).
+   */
+  private static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
@@ -0,0 +1,79 @@
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The MultiGetResult class holds the answer to an MGET: the versioned value of every requested
+ * key, in the order the keys were requested. Keys that are not present map to a value without
+ * content rather than being left out.
+ */
+public class MultiGetResult implements Serializable {
+  private static final long serialVersionUID = 1L;
+  private static final VersionedValue ABSENT = new VersionedValue(null, 0);
+
+  private final Map<String, VersionedValue> values;
+
+  /**
+   * Constructs a new, empty MultiGetResult.
+   */
+  public MultiGetResult() {
+    this.values = new LinkedHashMap<>();
+  }
+
+  /**
+   * Adds the value of a key to the result.
+   *
+   * @param key   the key.
+   * @param value the versioned value of the key.
+   */
+  public void put(String key, VersionedValue value) {
+    values.put(key, value);
+  }
+
+  /**
+   * Gets the value of a key.
+   *
+   * @param key the key.
+   * @return the versioned value of the key, or an absent value if the key is not in the result.
+   */
+  public VersionedValue get(String key) {
+    return values.getOrDefault(key, ABSENT);
+  }
+
+  /**
+   * Gets a subset of this result.
+   *
+   * @param keys the keys to be included.
+   * @return a new result holding only the given keys.
+   */
+  public MultiGetResult subset(Collection<String> keys) {
+    MultiGetResult subset = new MultiGetResult();
+    for (String key : keys) {
+      subset.put(key, get(key));
+    }
+    return subset;
+  }
+
+  /**
+   * Gets all values of the result.
+   *
+   * @return an unmodifiable map from key to versioned value, in request order.
+   */
+  public Map<String, VersionedValue> asMap() {
+    return Collections.unmodifiableMap(values);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, VersionedValue> entry : values.entrySet()) {
+      if (sb.length() > 0) {
+        sb.append(System.lineSeparator());
+      }
+      sb.append(entry.getKey()).append(": ").append(entry.getValue());
+    }
+    return sb.toString();
+  }
+}
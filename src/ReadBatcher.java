@@ -0,0 +1,177 @@
+import java.rmi.RemoteException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+
+/**
+ * The ReadBatcher class coalesces concurrent reads into batches, so that one batched RPC per
+ * replica serves many callers.
+ * <p>
+ * Batching adds no delay to an idle server: the first caller sends its read right away. Callers
+ * arriving while a batch is in flight queue up, and the next of them sends everything queued so
+ * far as the following batch, up to {@code kv.read.maxBatchKeys} keys (default 256).
+ */
+public class ReadBatcher {
+
+  /**
+   * Reads a batch of keys.
+   */
+  public interface BatchReader {
+
+    /**
+     * Reads the given keys.
+     *
+     * @param keys the keys to be read, without duplicates.
+     * @return the values of the keys.
+     * @throws RemoteException if the batch could not be read.
+     */
+    MultiGetResult read(List<String> keys) throws RemoteException;
+  }
+
+  private final BatchReader reader;
+  private final int maxBatchKeys;
+  private final Queue<Request> pending;
+  private boolean batchRunning;
+
+  /**
+   * Constructs a new ReadBatcher using the batch size configured through system properties.
+   *
+   * @param reader the reader called once per batch.
+   */
+  public ReadBatcher(BatchReader reader) {
+    this.reader = reader;
+    this.maxBatchKeys = Integer.getInteger("kv.read.maxBatchKeys", 256);
+    this.pending = new ArrayDeque<>();
+  }
+
+  /**
+   * Reads the given keys as part of a batch.
+   *
+   * @param keys the keys to be read.
+   * @return the values of the keys.
+   * @throws RemoteException if the batch this read was part of failed.
+   */
+  public MultiGetResult read(List<String> keys) throws RemoteException {
+    Request request = new Request(keys);
+    synchronized (this) {
+      pending.add(request);
+      if (!batchRunning) {
+        batchRunning = true;
+        request.leader = true;
+      }
+    }
+
+    if (request.awaitLeadershipOrResult()) {
+      runBatch();
+    }
+    return request.getResult();
+  }
+
+  /**
+   * Sends the queued reads as one batch and hands the next batch to the first caller still
+   * waiting. The hand-over happens even if the read throws an {@link Error}, so that the callers
+   * queued behind the batch are never left waiting.
+   */
+  private void runBatch() {
+    List<Request> batch = new ArrayList<>();
+    Set<String> keys = new LinkedHashSet<>();
+    synchronized (this) {
+      while (!pending.isEmpty()
+          && (batch.isEmpty() || keys.size() + pending.peek().keys.size() <= maxBatchKeys)) {
+        Request request = pending.remove();
+        batch.add(request);
+        keys.addAll(request.keys);
+      }
+    }
+
+    try {
+      MultiGetResult result = reader.read(new ArrayList<>(keys));
+      for (Request request : batch) {
+        request.complete(result.subset(request.keys), null);
+      }
+    } catch (RemoteException | RuntimeException e) {
+      RemoteException failure = e instanceof RemoteException
+          ? (RemoteException) e : new RemoteException("Batched read failed", e);
+      for (Request request : batch) {
+        request.complete(null, failure);
+      }
+    } finally {
+      // Only requests left unanswered by an Error are completed here.
+      for (Request request : batch) {
+        request.complete(null, new RemoteException("Batched read failed"));
+      }
+
+      Request next;
+      synchronized (this) {
+        next = pending.peek();
+        if (next == null) {
+          batchRunning = false;
+        }
+      }
+      if (next != null) {
+        next.promote();
+      }
+    }
+  }
+
+  /**
+   * The Request class is a single caller's read waiting in the queue.
+   */
+  private static class Request {
+    private final List<String> keys;
+    private boolean leader;
+    private boolean done;
+    private MultiGetResult result;
+    private RemoteException failure;
+
+    private Request(List<String> keys) {
+      this.keys = keys;
+    }
+
+    /**
+     * Waits until this request has been answered or has to send the next batch itself.
+     *
+     * @return true if the caller has to send the next batch, false if the request was answered.
+     */
+    private synchronized boolean awaitLeadershipOrResult() {
+      boolean interrupted = false;
+      while (!done && !leader) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          // Other callers depend on this request taking its turn, so keep waiting.
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+      return !done;
+    }
+
+    private synchronized void promote() {
+      leader = true;
+      notifyAll();
+    }
+
+    private synchronized void complete(MultiGetResult result, RemoteException failure) {
+      if (done) {
+        return;
+      }
+      this.result = result;
+      this.failure = failure;
+      this.done = true;
+      notifyAll();
+    }
+
+    private synchronized MultiGetResult getResult() throws RemoteException {
+      if (failure != null) {
+        throw failure;
+      }
+      return result;
+    }
+  }
+}
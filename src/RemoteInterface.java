@@ -1,5 +1,6 @@
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -20,11 +21,11 @@ public interface RemoteInterface extends Remote {
   String processRequest(String request) throws RemoteException;
 
   /**
-   * Prepares to perform a PUT operation on the key-value store.
+   * Prepares to perform a PUT operation on the key-value store, and commits it if it can be.
    *
    * @param key the key for the key-value pair to be put.
    * @param value the value for the key-value pair to be put.
-   * @return {@code true} if the operation can be committed, {@code false} otherwise.
+   * @return {@code true} if the PUT was committed, {@code false} otherwise.
    * @throws RemoteException if a communication-related exception occurs during remote method invocation.
    */
   boolean preparePut(String key, String value) throws RemoteException;
@@ -39,6 +40,16 @@ public interface RemoteInterface extends Remote {
    */
   boolean receivePreparePutRequest(String key, String value) throws RemoteException;
 
+  /**
+   * Receives a prepare PUT request for a value that is too large to be sent with the vote, and
+   * checks if the operation can be committed. The value follows in chunks with the commit.
+   *
+   * @param key the key for the key-value pair to be put.
+   * @return {@code true} if the operation can be committed, {@code false} otherwise.
+   * @throws RemoteException if a communication-related exception occurs during remote method invocation.
+   */
+  boolean receivePrepareChunkedPutRequest(String key) throws RemoteException;
+
   /**
    * Receives the prepare PUT response from the coordinator and performs the commit if allowed.
    *
@@ -55,16 +66,105 @@ public interface RemoteInterface extends Remote {
    *
    * @param key the key for the key-value pair to be put.
    * @param value the value for the key-value pair to be put.
-   * @throws RemoteException if a communication-related exception occurs during remote method invocation.
+   * @throws RemoteException if the PUT was not committed on enough replicas, or if a
+   *     communication-related exception occurs during remote method invocation.
    */
   void performCommitPut(String key, String value) throws RemoteException;
 
 
   /**
-   * Prepares to perform a DELETE operation on the key-value store.
+   * Performs a PUT operation, returning once the given consistency level has been reached.
+   * A PUT only inserts: it is refused if the key is present. This also holds for concurrent writes
+   * to a hot key, which are queued and checked in arrival order, so a PUT queued behind a DELETE
+   * of the key succeeds, while a PUT queued behind another PUT of the key is refused.
+   *
+   * @param key the key for the key-value pair to be put.
+   * @param value the value for the key-value pair to be put.
+   * @param level the number of replicas that have to acknowledge the PUT.
+   * @return {@code true} if the PUT was committed on enough replicas, {@code false} otherwise.
+   * @throws RemoteException if a communication-related exception occurs during remote method invocation.
+   */
+  boolean put(String key, String value, ConsistencyLevel level) throws RemoteException;
+
+  /**
+   * Performs a DELETE operation, returning once the given consistency level has been reached.
+   * A DELETE is refused if the key is not present, also when it is queued behind another write to
+   * a hot key.
    *
    * @param key the key for the key-value pair to be deleted.
-   * @return {@code true} if the operation can be committed, {@code false} otherwise.
+   * @param level the number of replicas that have to acknowledge the DELETE.
+   * @return {@code true} if the DELETE was committed on enough replicas, {@code false} otherwise.
+   * @throws RemoteException if a communication-related exception occurs during remote method invocation.
+   */
+  boolean delete(String key, ConsistencyLevel level) throws RemoteException;
+
+  /**
+   * Stages one chunk of a large value that is uploaded in pieces.
+   *
+   * @param uploadId the id of the upload, chosen by the sender.
+   * @param index    the position of the chunk, starting at 0.
+   * @param chunk    the chunk.
+   * @throws RemoteException if a communication-related exception occurs during remote method invocation.
+   */
+  void putChunk(String uploadId, int index, String chunk) throws RemoteException;
+
+  /**
+   * Performs a PUT operation with a value previously uploaded through {@link #putChunk}.
+   *
+   * @param key        the key for the new key-value pair.
+   * @param uploadId   the id of the upload holding the value.
+   * @param chunkCount the number of chunks the value consists of.
+   * @param level      the number of replicas that have to acknowledge the PUT before returning.
+   * @return true if the PUT was committed on enough replicas, false otherwise.
+   * @throws RemoteException if the upload is incomplete, or if a communication-related exception
+   *     occurs during remote method invocation.
+   */
+  boolean putChunked(String key, String uploadId, int chunkCount, ConsistencyLevel level)
+      throws RemoteException;
+
+  /**
+   * Performs a GET operation at the given consistency level, repairing stale replicas it finds.
+   *
+   * @param key the key to be read.
+   * @param level the number of replicas that have to answer.
+   * @return the newest value found, together with its version.
+   * @throws RemoteException if not enough replicas answered, or if a communication-related exception occurs.
+   */
+  VersionedValue get(String key, ConsistencyLevel level) throws RemoteException;
+
+  /**
+   * Performs an MGET operation at the given consistency level, reading all keys in one request.
+   *
+   * @param keys the keys to be read.
+   * @param level the number of replicas that have to answer.
+   * @return the newest value found for each key, together with its version.
+   * @throws RemoteException if not enough replicas answered, or if a communication-related exception occurs.
+   */
+  MultiGetResult multiGet(List<String> keys, ConsistencyLevel level) throws RemoteException;
+
+  /**
+   * Reads the local copies of several keys, used by the coordinator for batched QUORUM and ALL reads.
+   *
+   * @param keys the keys to be read.
+   * @return the local value of each key, together with its version.
+   * @throws RemoteException if a communication-related exception occurs during remote method invocation.
+   */
+  MultiGetResult readLocal(List<String> keys) throws RemoteException;
+
+  /**
+   * Reads the local copy of a key, used by the coordinator for QUORUM and ALL reads.
+   *
+   * @param key the key to be read.
+   * @return the local value of the key, together with its version.
+   * @throws RemoteException if a communication-related exception occurs during remote method invocation.
+   */
+  VersionedValue readLocal(String key) throws RemoteException;
+
+  /**
+   * Prepares to perform a DELETE operation on the key-value store, and commits it if it can be.
+   *
+   * @param key the key for the key-value pair to be deleted.
+   * @return {@code true} if the DELETE was committed, {@code false} otherwise.
    * @throws RemoteException if a communication-related exception occurs during remote method invocation.
    */
   boolean prepareDelete(String key) throws RemoteException;
@@ -92,7 +192,8 @@ public interface RemoteInterface extends Remote {
    * Performs the commit for the DELETE operation.
    *
    * @param key the key for the key-value pair to be deleted.
-   * @throws RemoteException if a communication-related exception occurs during remote method invocation.
+   * @throws RemoteException if the DELETE was not committed on enough replicas, or if a
+   *     communication-related exception occurs during remote method invocation.
    */
   void performCommitDelete(String key) throws RemoteException;
 
@@ -116,6 +217,22 @@ public interface RemoteInterface extends Remote {
    */
   boolean canCommitDelete(String key) throws RemoteException;
 
+  /**
+   * Reads the committed PUT and DELETE events of the replica for keys starting with the given prefix,
+   * waiting for new events if there are none yet. Callers resume from the returned sequence number.
+   *
+   * @param prefix the key prefix to be watched; an exact key or "" for all keys.
+   * @param incarnation the incarnation id of the change log {@code fromSequence} refers to, as
+   *     returned with an earlier batch, or 0 if unknown.
+   * @param fromSequence the sequence number to resume from, or -1 to start with new events.
+   * @param maxEvents the maximum number of events to be returned.
+   * @param waitMs the maximum time to wait for a matching event in milliseconds.
+   * @return the matching events and the sequence number to resume from.
+   * @throws RemoteException if a communication-related exception occurs during remote method invocation.
+   */
+  ChangeBatch watch(String prefix, long incarnation, long fromSequence, int maxEvents, long waitMs)
+      throws RemoteException;
+
   /**
    * Updates the key-value store with the provided map.
    *
@@ -124,6 +241,31 @@ public interface RemoteInterface extends Remote {
    */
   void updateKeyValueStore(Map<String, String> newKeyValueStore) throws RemoteException;
 
+  /**
+   * Gets the hashes of the given nodes of the replica's Merkle tree, used by anti-entropy repair.
+   *
+   * @param level the level of the nodes, where 0 is the root.
+   * @param indexes the indexes of the nodes within the level.
+   * @return the hashes of the nodes, in the order of {@code indexes}.
+   * @throws RemoteException if a communication-related exception occurs during remote method invocation.
+   */
+  long[] getMerkleHashes(int level, int[] indexes) throws RemoteException;
+
+  /**
+   * Replaces the contents of the given Merkle tree buckets with the coordinator's entries. Keys
+   * written with a version newer than {@code snapshotVersion} are kept, since they were committed
+   * after the entries were read.
+   *
+   * @param buckets         the leaf buckets to be repaired.
+   * @param entries         the coordinator's entries and tombstones in those buckets, with their
+   *                        versions.
+   * @param snapshotVersion the newest version the coordinator had assigned before reading the
+   *                        entries.
+   * @throws RemoteException if a communication-related exception occurs during remote method invocation.
+   */
+  void repairBuckets(int[] buckets, Map<String, VersionedValue> entries, long snapshotVersion)
+      throws RemoteException;
+
   /**
    * Receives a message with an ACK (acknowledgment) from another replica.
    *
@@ -156,4 +298,90 @@ public interface RemoteInterface extends Remote {
    * @throws RemoteException if a communication-related exception occurs during remote method invocation.
    */
   void unregisterReplicaServer(RemoteInterface replicaServer) throws RemoteException;
+
+  /**
+   * Answers a heartbeat sent by the coordinator's failure detector.
+   *
+   * @return the node id of the replica.
+   * @throws RemoteException if a communication-related exception occurs during remote method invocation.
+   */
+  String heartbeat() throws RemoteException;
+
+  /**
+   * Gets the cluster membership as seen by the coordinator.
+   *
+   * @return a map from node id to the liveness state of the node.
+   * @throws RemoteException if a communication-related exception occurs during remote method invocation.
+   */
+  Map<String, String> getClusterMembership() throws RemoteException;
+
+  /**
+   * Gets the keys the replica currently receives most of its requests for.
+   *
+   * @return a map from each hot key to its estimated recent access count, hottest first.
+   * @throws RemoteException if a communication-related exception occurs during remote method invocation.
+   */
+  Map<String, Long> getHotKeys() throws RemoteException;
+
+  /**
+   * Adds a node to the cluster. Nodes other than the coordinator forward the request to it.
+   *
+   * @param node the node joining the cluster.
+   * @return the membership view that includes the node.
+   * @throws RemoteException if a communication-related exception occurs during remote method invocation.
+   */
+  MembershipView join(RemoteInterface node) throws RemoteException;
+
+  /**
+   * Removes a node from the cluster. Nodes other than the coordinator forward the request to it.
+   * The leaving node does not have to be reachable.
+   *
+   * @param memberId the node id of the node leaving the cluster.
+   * @return the membership view without the node.
+   * @throws RemoteException if a communication-related exception occurs during remote method invocation.
+   */
+  MembershipView leave(String memberId) throws RemoteException;
+
+  /**
+   * Exchanges membership views with another node; both keep the view with the higher version.
+   *
+   * @param view the calling node's view.
+   * @return the receiving node's view after merging.
+   * @throws RemoteException if a communication-related exception occurs during remote method invocation.
+   */
+  MembershipView exchangeMembership(MembershipView view) throws RemoteException;
+
+  /**
+   * Gets the membership view of the replica.
+   *
+   * @return the membership view.
+   * @throws RemoteException if a communication-related exception occurs during remote method invocation.
+   */
+  MembershipView getMembershipView() throws RemoteException;
+
+  /**
+   * Invokes another method of this interface as part of a trace. Called by stubs wrapped with
+   * {@link Tracing#wrap} for calls made within a sampled trace.
+   *
+   * @param traceId        the id of the caller's trace.
+   * @param parentSpanId   the id of the caller's span.
+   * @param method         the name of the method to be invoked.
+   * @param parameterTypes the parameter types of the method.
+   * @param args           the arguments of the call.
+   * @return the result of the call, together with the spans the replica recorded for the trace.
+   * @throws RemoteException if the invoked method throws it, or if a communication-related
+   *     exception occurs during remote method invocation.
+   */
+  TracedResult invokeTraced(long traceId, long parentSpanId, String method,
+      Class<?>[] parameterTypes, Object[] args) throws RemoteException;
+
+  /**
+   * Gets the slowest traces the replica has recorded spans for.
+   *
+   * @param minDurationMs the minimum duration of the traces to be returned, in milliseconds.
+   * @param limit         the maximum number of traces to be returned.
+   * @return the spans of each trace, slowest trace first.
+   * @throws RemoteException if a communication-related exception occurs during remote method invocation.
+   */
+  List<List<Span>> getSlowTraces(long minDurationMs, int limit) throws RemoteException;
 }
@@ -0,0 +1,153 @@
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * The ReplicaFanOut class sends one call to a set of replicas in parallel and lets the coordinator
+ * wait for just as many answers as its consistency level needs. Calls that are still running when
+ * the coordinator stops waiting complete in the background.
+ * <p>
+ * An answer that is not accepted (e.g. a negative prepare vote) does not count, and neither does a
+ * call that fails with a {@link RemoteException}, which is also handed to the failure handler. The
+ * fan-out fails as soon as too few calls are left to reach the required answers.
+ *
+ * @param <T> the type of the answers.
+ */
+public class ReplicaFanOut<T> {
+
+  /**
+   * A call made to a single replica.
+   *
+   * @param <T> the type of the answer.
+   */
+  public interface Call<T> {
+
+    /**
+     * Makes the call.
+     *
+     * @param replica the replica to be called.
+     * @return the answer of the replica.
+     * @throws RemoteException if a remote communication error occurs.
+     */
+    T invoke(RemoteInterface replica) throws RemoteException;
+  }
+
+  private final List<RemoteInterface> replicas;
+  private final Predicate<T> accepted;
+  private final Map<RemoteInterface, T> answers;
+  private final List<BiConsumer<RemoteInterface, T>> answerHandlers;
+  private int acceptedCount;
+  private int failedCount;
+  private int rejectedCount;
+
+  /**
+   * Starts the given call on every replica.
+   *
+   * @param executor  the executor running the calls.
+   * @param replicas  the replicas to be called.
+   * @param call      the call to be made.
+   * @param accepted  the test an answer has to pass to count towards the required answers.
+   * @param onFailure the handler invoked for replicas whose call failed.
+   */
+  public ReplicaFanOut(Executor executor, List<RemoteInterface> replicas, Call<T> call,
+      Predicate<T> accepted, Consumer<RemoteInterface> onFailure) {
+    this.replicas = new ArrayList<>(replicas);
+    this.accepted = accepted;
+    this.answers = new LinkedHashMap<>();
+    this.answerHandlers = new ArrayList<>();
+
+    for (RemoteInterface replica : this.replicas) {
+      executor.execute(() -> {
+        try {
+          T answer = call.invoke(replica);
+          onAnswer(replica, answer);
+        } catch (RemoteException e) {
+          onFailure.accept(replica);
+          onFailed();
+        }
+      });
+    }
+  }
+
+  /**
+   * Waits until the required number of accepted answers has arrived.
+   *
+   * @param required  the number of accepted answers to wait for.
+   * @param timeoutMs the maximum time to wait in milliseconds.
+   * @return true if enough answers were accepted, false if too many answers were not accepted or
+   *     too many calls failed to reach the required answers, or if the timeout elapsed.
+   */
+  public synchronized boolean await(int required, long timeoutMs) {
+    long deadline = System.currentTimeMillis() + timeoutMs;
+    while (true) {
+      if (acceptedCount >= required) {
+        return true;
+      }
+      if (replicas.size() - failedCount - rejectedCount < required) {
+        return false;
+      }
+
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0) {
+        return false;
+      }
+      try {
+        wait(remaining);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Gets a snapshot of the answers received so far.
+   *
+   * @return a map from replica to its answer.
+   */
+  public synchronized Map<RemoteInterface, T> getAnswers() {
+    return new LinkedHashMap<>(answers);
+  }
+
+  /**
+   * Runs the given handler for every answer received so far and for every answer still to come.
+   *
+   * @param handler the handler to be run.
+   */
+  public void forEachAnswer(BiConsumer<RemoteInterface, T> handler) {
+    Map<RemoteInterface, T> received;
+    synchronized (this) {
+      answerHandlers.add(handler);
+      received = new LinkedHashMap<>(answers);
+    }
+    received.forEach(handler);
+  }
+
+  private void onAnswer(RemoteInterface replica, T answer) {
+    List<BiConsumer<RemoteInterface, T>> handlers;
+    synchronized (this) {
+      answers.put(replica, answer);
+      if (accepted.test(answer)) {
+        acceptedCount++;
+      } else {
+        rejectedCount++;
+      }
+      handlers = new ArrayList<>(answerHandlers);
+      notifyAll();
+    }
+    for (BiConsumer<RemoteInterface, T> handler : handlers) {
+      handler.accept(replica, answer);
+    }
+  }
+
+  private synchronized void onFailed() {
+    failedCount++;
+    notifyAll();
+  }
+}
@@ -0,0 +1,181 @@
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The ReplicaSelector class picks the replica a client sends its next read to.
+ * <p>
+ * For each replica it tracks an exponentially weighted moving average (EWMA) of the response time,
+ * the number of outstanding requests, and a window of recent response times for percentiles.
+ * Replicas are chosen with the power-of-two-choices rule: two replicas are drawn at random and
+ * the one with the lower {@code EWMA * (outstanding + 1)} wins. This steers reads away from slow or
+ * overloaded replicas without sending every read to the single fastest one.
+ * <p>
+ * The EWMA weight of a new sample can be set with {@code kv.client.ewmaAlpha} (default 0.3).
+ */
+public class ReplicaSelector {
+  private static final int WINDOW_SIZE = 128;
+
+  private final ReplicaStats[] stats;
+  private final double alpha;
+  private final long failurePenaltyNanos;
+
+  /**
+   * Constructs a new ReplicaSelector.
+   *
+   * @param replicaCount        the number of replicas to choose from.
+   * @param failurePenaltyNanos the smallest response time a failed request counts as.
+   */
+  public ReplicaSelector(int replicaCount, long failurePenaltyNanos) {
+    this.stats = new ReplicaStats[replicaCount];
+    for (int i = 0; i < replicaCount; i++) {
+      stats[i] = new ReplicaStats();
+    }
+    this.alpha = Double.parseDouble(System.getProperty("kv.client.ewmaAlpha", "0.3"));
+    this.failurePenaltyNanos = failurePenaltyNanos;
+  }
+
+  /**
+   * Picks a replica using the power-of-two-choices rule.
+   *
+   * @param exclude the index of a replica that must not be picked, or -1.
+   * @return the index of the chosen replica, or -1 if there is no replica to choose from.
+   */
+  public int select(int exclude) {
+    int candidates = exclude >= 0 && exclude < stats.length ? stats.length - 1 : stats.length;
+    if (candidates <= 0) {
+      return -1;
+    }
+
+    int first = randomReplica(exclude, -1);
+    if (candidates == 1) {
+      return first;
+    }
+    int second = randomReplica(exclude, first);
+    return stats[first].score() <= stats[second].score() ? first : second;
+  }
+
+  /**
+   * Records that a request to the given replica has been sent.
+   *
+   * @param replica the index of the replica.
+   */
+  public void onStart(int replica) {
+    stats[replica].onStart();
+  }
+
+  /**
+   * Records that a request to the given replica has been answered.
+   *
+   * @param replica      the index of the replica.
+   * @param latencyNanos the response time in nanoseconds.
+   */
+  public void onSuccess(int replica, long latencyNanos) {
+    stats[replica].onComplete(latencyNanos);
+  }
+
+  /**
+   * Records that a request to the given replica has failed. The failure counts as a response
+   * that took twice as long as the slowest recent one, and at least the failure penalty, so the
+   * replica is avoided for a while even if it fails fast or has no recorded responses yet.
+   *
+   * @param replica      the index of the replica.
+   * @param latencyNanos the time until the failure in nanoseconds.
+   */
+  public void onFailure(int replica, long latencyNanos) {
+    ReplicaStats replicaStats = stats[replica];
+    replicaStats.onComplete(Math.max(Math.max(latencyNanos, 2 * replicaStats.percentile(1.0)),
+        failurePenaltyNanos));
+  }
+
+  /**
+   * Gets a percentile of the recent response times of the given replica.
+   *
+   * @param replica    the index of the replica.
+   * @param percentile the percentile, between 0 and 1.
+   * @return the response time in nanoseconds, or 0 if no response has been recorded yet.
+   */
+  public long percentile(int replica, double percentile) {
+    return stats[replica].percentile(percentile);
+  }
+
+  /**
+   * Gets the number of recent response times recorded for the given replica.
+   *
+   * @param replica the index of the replica.
+   * @return the number of samples in the window.
+   */
+  public int sampleCount(int replica) {
+    return stats[replica].sampleCount();
+  }
+
+  /**
+   * Gets a short description of the statistics of the given replica.
+   *
+   * @param replica the index of the replica.
+   * @return the EWMA latency, outstanding requests, and p95 latency of the replica.
+   */
+  public String describe(int replica) {
+    ReplicaStats replicaStats = stats[replica];
+    synchronized (replicaStats) {
+      return String.format("ewma=%.2fms outstanding=%d p95=%.2fms",
+          replicaStats.ewmaNanos / 1e6, replicaStats.outstanding,
+          replicaStats.percentile(0.95) / 1e6);
+    }
+  }
+
+  /**
+   * Draws a random replica index other than the two given ones.
+   */
+  private int randomReplica(int exclude, int other) {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    int replica;
+    do {
+      replica = random.nextInt(stats.length);
+    } while (replica == exclude || replica == other);
+    return replica;
+  }
+
+  /**
+   * The ReplicaStats class holds the response time statistics of a single replica.
+   */
+  private class ReplicaStats {
+    private double ewmaNanos;
+    private int outstanding;
+    private final long[] window = new long[WINDOW_SIZE];
+    private int samples;
+    private int next;
+
+    private synchronized void onStart() {
+      outstanding++;
+    }
+
+    private synchronized void onComplete(long latencyNanos) {
+      outstanding = Math.max(0, outstanding - 1);
+      ewmaNanos = samples == 0 ? latencyNanos : alpha * latencyNanos + (1 - alpha) * ewmaNanos;
+      window[next] = latencyNanos;
+      next = (next + 1) % WINDOW_SIZE;
+      samples = Math.min(samples + 1, WINDOW_SIZE);
+    }
+
+    /**
+     * Scores the replica; lower is better. Replicas without samples score 0 so they get tried.
+     */
+    private synchronized double score() {
+      return ewmaNanos * (outstanding + 1);
+    }
+
+    private synchronized long percentile(double percentile) {
+      if (samples == 0) {
+        return 0;
+      }
+      long[] sorted = Arrays.copyOf(window, samples);
+      Arrays.sort(sorted);
+      int index = (int) Math.ceil(percentile * samples) - 1;
+      return sorted[Math.max(0, Math.min(index, samples - 1))];
+    }
+
+    private synchronized int sampleCount() {
+      return samples;
+    }
+  }
+}
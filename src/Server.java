@@ -5,6 +5,11 @@ import java.rmi.server.UnicastRemoteObject;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * The Server class represents a replica server in a distributed key-value store system.
@@ -13,60 +18,132 @@ import java.util.concurrent.ConcurrentHashMap;
 public class Server implements RemoteInterface {
   // Private fields for the server
   private Map<String, String> keyValueStore;
+  // Version of the last write applied to each key. Deleted keys keep their version as a tombstone.
+  private final Map<String, Long> keyVersions;
+  private final AtomicLong versionClock;
+  // Writes that passed their precondition on this coordinator but did not reach enough replicas.
+  private final AtomicLong failedCommits;
+  // The keys of each Merkle tree bucket, including tombstones, so that a repair only visits the keys
+  // of the buckets it repairs.
+  private final Map<Integer, Set<String>> bucketKeys;
   private Set<RemoteInterface> replicaServers;
-  private static List<RemoteInterface> replicaStubs;
-  private static List<Integer> replicaRegistryPorts;
-  private boolean isCoordinator;
+  private volatile boolean isCoordinator;
+  private String nodeId;
+  private final MembershipService membershipService;
+  // The stub of each replica that joined, by node id, so that a rejoining node replaces its old stub.
+  private final Map<String, RemoteInterface> memberStubs;
+  // Nodes that are being caught up before they join. They receive new writes, but do not count
+  // towards any consistency level yet.
+  private final Set<RemoteInterface> joiningReplicas;
+  private final FailureDetector failureDetector;
+  private final MerkleTree merkleTree;
+  private final AntiEntropyService antiEntropyService;
+  private final HintedHandoff hintedHandoff;
+  private final Executor replicationPool;
+  private final long replicationTimeoutMs;
+  private final Map<ConsistencyLevel, ReadBatcher> readBatchers;
+  private final ChangeLog changeLog;
+  private final ChunkAssembler chunkAssembler;
+  private final HotKeyTracker hotKeys;
+  private final SingleFlight<VersionedValue> readFlights;
+  private final WriteCoalescer writeCoalescer;
+  // Commits hold the read lock, changing the members of the commit path holds the write lock.
+  private final ReadWriteLock membershipLock;
 
   /**
    * Constructs a new Server instance.
-   * Initializes the key-value store, the set of replica servers, and the executor service.
+   * Initializes the key-value store, the set of replica servers, the failure detector,
+   * the anti-entropy service, and the replication thread pool.
    * Sets the initial state of this server as a non-coordinator.
    */
   public Server() {
     keyValueStore = new ConcurrentHashMap<>();
+    keyVersions = new ConcurrentHashMap<>();
+    versionClock = new AtomicLong();
+    failedCommits = new AtomicLong();
+    bucketKeys = new ConcurrentHashMap<>();
     replicaServers = ConcurrentHashMap.newKeySet();
-    replicaStubs = new ArrayList<>();
-    replicaRegistryPorts = new ArrayList<>();
     isCoordinator = false;
+    nodeId = "unregistered";
+    failureDetector = new FailureDetector(new ReplicaListener());
+    merkleTree = new MerkleTree(Integer.getInteger("kv.ae.treeDepth", 10));
+    antiEntropyService = new AntiEntropyService(merkleTree, new RepairSource());
+    hintedHandoff = new HintedHandoff();
+    replicationPool = Tracing.propagating(Executors.newCachedThreadPool(r -> {
+      Thread t = new Thread(r, "replication");
+      t.setDaemon(true);
+      return t;
+    }));
+    replicationTimeoutMs = Long.getLong("kv.replication.timeoutMs", 5000L);
+    changeLog = new ChangeLog();
+    chunkAssembler = new ChunkAssembler();
+    hotKeys = new HotKeyTracker();
+    readFlights = new SingleFlight<>();
+    writeCoalescer = new WriteCoalescer(this::commitWrites);
+    readBatchers = new EnumMap<>(ConsistencyLevel.class);
+    readBatchers.put(ConsistencyLevel.QUORUM,
+        new ReadBatcher(keys -> replicatedRead(keys, ConsistencyLevel.QUORUM)));
+    readBatchers.put(ConsistencyLevel.ALL,
+        new ReadBatcher(keys -> replicatedRead(keys, ConsistencyLevel.ALL)));
+    membershipLock = new ReentrantReadWriteLock();
+    membershipService = new MembershipService();
+    memberStubs = new ConcurrentHashMap<>();
+    joiningReplicas = ConcurrentHashMap.newKeySet();
+  }
+
+  /**
+   * Constructs a new Server instance with the given node id, for servers that are not started
+   * through {@link #startServer}, such as those of the {@link ClusterSimulator}.
+   *
+   * @param nodeId the node id of the server.
+   */
+  Server(String nodeId) {
+    this();
+    this.nodeId = nodeId;
   }
 
   /**
    * The main method to start the replica servers and coordinate the system.
+   * Without arguments, it asks for a number of replicas and starts them in this process on
+   * consecutive ports from {@code kv.basePort} (default 1010); the first one is the coordinator
+   * and the others join it. With arguments {@code PORT [SEED_HOST:SEED_PORT]}, it starts a single
+   * server that joins the cluster through the seed node, or starts a new cluster if no seed is
+   * given. A server started this way leaves the cluster when its process shuts down.
    *
    * @param args command-line arguments.
    */
   public static void main(String[] args) {
+    if (args.length > 0) {
+      Server server = new Server();
+      startServer(server, Integer.parseInt(args[0]), args.length > 1 ? args[1] : null);
+      Runtime.getRuntime().addShutdownHook(new Thread(server::leaveCluster));
+      return;
+    }
+
     System.out.println("Enter the number of replicas:");
     Scanner sc = new Scanner(System.in);
     int numReplicas = sc.nextInt();
     sc.close();
 
-    Server coordinator = null;
-
+    int basePort = Integer.getInteger("kv.basePort", 1010);
     for (int i = 1; i <= numReplicas; i++) {
-      Server server = new Server();
-
       if (i == 1) {
-        coordinator = server;
-        coordinator.isCoordinator = true;
         System.out.println("-------------------------------------");
         System.out.println("The Replica " + i + " is the Coordinator.");
       }
-
-      int registryPort = 1009 + i;
-      startServer(server, registryPort, coordinator);
+      startServer(new Server(), basePort + i - 1, i == 1 ? null : "localhost:" + basePort);
     }
   }
 
   /**
-   * Starts the replica server with the provided registry port and coordinator instance.
+   * Starts the replica server on the provided registry port and makes it a member of the cluster.
    *
-   * @param server        the server instance to be started.
-   * @param registryPort  the registry port for RMI communication.
-   * @param coordinator   the coordinator instance for coordinating replicas.
+   * @param server       the server instance to be started.
+   * @param registryPort the registry port for RMI communication.
+   * @param seed         the node id of any cluster member to join through, or null to start a new
+   *                     cluster with this server as the coordinator.
    */
-  private static void startServer(Server server, int registryPort, Server coordinator) {
+  private static void startServer(Server server, int registryPort, String seed) {
     try {
       RemoteInterface replicaStub = (RemoteInterface) UnicastRemoteObject.exportObject(server,
           registryPort);
@@ -79,33 +156,39 @@ public class Server implements RemoteInterface {
       }
 
       registry.rebind("RemoteInterface", replicaStub);
+      server.nodeId = System.getProperty("kv.host", "localhost") + ":" + registryPort;
 
       System.out.println("Server started on port: " + registryPort);
 
-      if (coordinator == null) {
+      if (seed == null) {
+        server.isCoordinator = true;
+        server.membershipService.bootstrap(server.nodeId);
         System.out.println("Replica " + registryPort + " is the Coordinator.");
       } else {
-        if (coordinator != server) {
-          try {
-            int coordinatorRegistryPort = 1009;
-            for (int port : replicaRegistryPorts) {
-              if (port == coordinatorRegistryPort) {
-                RemoteInterface coordinatorStub = replicaStubs.get(
-                    replicaRegistryPorts.indexOf(port));
-                server.registerReplicaServer(coordinatorStub);
-                break;
-              }
-            }
-          } catch (Exception e) {
-            e.printStackTrace();
-          }
-        }
+        server.membershipService.setNodeId(server.nodeId);
+        server.membershipService.merge(MembershipService.connect(seed).join(replicaStub));
       }
+      server.membershipService.start();
     } catch (Exception e) {
       e.printStackTrace();
     }
   }
 
+  /**
+   * Asks the coordinator to remove this server from the cluster, e.g. to drain it before it is
+   * shut down.
+   */
+  private void leaveCluster() {
+    if (isCoordinator) {
+      return;
+    }
+    try {
+      MembershipService.connect(membershipService.getView().getCoordinatorId()).leave(nodeId);
+    } catch (RemoteException e) {
+      System.out.println(getCurrentTimestamp() + "Could not leave the cluster: " + e.getMessage());
+    }
+  }
+
   /**
    * Gets the current timestamp in the UTC time zone.
    *
@@ -118,8 +201,11 @@ public class Server implements RemoteInterface {
 
   /**
    * Processes the incoming client request based on the command provided.
+   * PUT and DELETE requests are committed once, at consistency level QUORUM, so that a suspected
+   * replica does not fail them.
    * If the command is "PUT", it prepares and performs the PUT operation on the key-value store.
    * If the command is "GET", it retrieves the value for the given key from the key-value store.
+   * If the command is "MGET", it retrieves the values for the given space-separated keys.
    * If the command is "DELETE", it prepares and performs the DELETE operation on the key-value store.
    *
    * @param request the client request in the format "COMMAND KEY=VALUE" or "COMMAND KEY".
@@ -136,17 +222,18 @@ public class Server implements RemoteInterface {
       String key = keyValue[0].trim();
       String value = keyValue[1].trim();
 
+      // preparePut commits the PUT as well.
       boolean prepareResult = preparePut(key, value);
 
       if (prepareResult) {
-        performCommitPut(key, value);
         return getCurrentTimestamp() + "Request processed";
       } else {
         return getCurrentTimestamp() + "Failed to process request";
       }
     } else if (command.equalsIgnoreCase("GET")) {
       String key = parts[1].trim();
-      String value = keyValueStore.get(key);
+      hotKeys.record(key);
+      String value = ValueCodec.decode(keyValueStore.get(key));
       System.out.println(getCurrentTimestamp() + "GET request processed");
 
       if (value != null) {
@@ -154,13 +241,16 @@ public class Server implements RemoteInterface {
       } else {
         return "Key not found";
       }
+    } else if (command.equalsIgnoreCase("MGET")) {
+      List<String> keys = Arrays.asList(parts[1].trim().split("\\s+"));
+      return multiGet(keys, ConsistencyLevel.ONE).toString();
     } else if (command.equalsIgnoreCase("DELETE")) {
       String key = parts[1].trim();
 
+      // prepareDelete commits the DELETE as well.
       boolean prepareResult = prepareDelete(key);
 
       if (prepareResult) {
-        performCommitDelete(key);
         return getCurrentTimestamp() + "Request processed";
       } else {
         return getCurrentTimestamp() + "Failed to process request";
@@ -180,25 +270,534 @@ public class Server implements RemoteInterface {
    */
   private boolean sendMessageWithACK(RemoteInterface replica, String message)
       throws RemoteException {
-    boolean ackReceived = replica.receiveMessageWithACK(message);
+    // Large messages are streamed in chunks, so they do not hold up other calls to the replica.
+    boolean ackReceived = ChunkAssembler.sendMessageWithACK(replica, message);
     return ackReceived;
   }
 
   /**
-   * Prepares the PUT operation by checking if the key-value pair can be committed.
+   * Gets the prepare call for a PUT. A value that is sent in chunks with the commit is left out
+   * of the vote, which only depends on the key.
+   *
+   * @param key         the key for the new key-value pair.
+   * @param storedValue the value as it is stored and replicated.
+   * @return the prepare call.
+   */
+  private ReplicaFanOut.Call<Boolean> preparePutCall(String key, String storedValue) {
+    if (storedValue.length() > ChunkAssembler.CHUNK_SIZE) {
+      return replica -> replica.receivePrepareChunkedPutRequest(key);
+    }
+    return replica -> replica.receivePreparePutRequest(key, storedValue);
+  }
+
+  /**
+   * Gets a new write version. Versions grow strictly and follow the wall clock, so that versions
+   * assigned after a restart of the coordinator are still higher than earlier ones.
+   *
+   * @param after a version the new version has to be higher than.
+   * @return the new version.
+   */
+  private long nextVersion(long after) {
+    long now = System.currentTimeMillis() * 1000;
+    return versionClock.updateAndGet(last -> Math.max(Math.max(last, after) + 1, now));
+  }
+
+  /**
+   * Applies a write to the local key-value store. The write is skipped if the key already has the
+   * same or a newer version, so replayed or reordered commit messages never overwrite newer data.
+   *
+   * @param key     the key to be written.
+   * @param value   the new value, or null to delete the key.
+   * @param version the version of the write.
+   * @return true if the write was applied, false if it was older than the local copy.
+   */
+  private boolean apply(String key, String value, long version) {
+    boolean[] applied = {false};
+    keyVersions.compute(key, (k, current) -> {
+      if (current != null && current >= version) {
+        return current;
+      }
+      applied[0] = true;
+      return store(key, value, version, true);
+    });
+    return applied[0];
+  }
+
+  /**
+   * Applies a new write of the coordinator to the local key-value store. The version is assigned
+   * while the key is locked, so a repair snapshot that reads the key either contains the write or
+   * was taken before its version existed. The write is not appended to the change log until it
+   * has been committed, see {@link #announce}.
+   *
+   * @param key      the key to be written.
+   * @param value    the new value, or null to delete the key.
+   * @param replaced receives the copy of the key that the write replaced, so that it can be
+   *                 restored with {@link #revert} if the write does not reach enough replicas.
+   * @return the version of the write.
+   */
+  private long applyNewVersion(String key, String value, VersionedValue[] replaced) {
+    long[] version = new long[1];
+    keyVersions.compute(key, (k, current) -> {
+      replaced[0] = new VersionedValue(keyValueStore.get(key), current == null ? 0 : current);
+      version[0] = nextVersion(current == null ? 0 : current);
+      return store(key, value, version[0], false);
+    });
+    return version[0];
+  }
+
+  /**
+   * Reverts a write of the coordinator that did not reach enough replicas, by writing the copy it
+   * replaced back under a new version, unless the key has been written again since. The revert is
+   * replicated in the background, so that replicas that did apply the write drop it as well.
+   * Neither the write nor its revert is appended to the change log of the coordinator.
+   *
+   * @param key      the key written to.
+   * @param version  the version of the write to be reverted.
+   * @param replaced the copy of the key that the write replaced.
+   */
+  private void revert(String key, long version, VersionedValue replaced) {
+    long[] revertVersion = new long[1];
+    keyVersions.compute(key, (k, current) -> {
+      if (current == null || current != version) {
+        return current;
+      }
+      revertVersion[0] = nextVersion(current);
+      return store(key, replaced.getStoredValue(), revertVersion[0], false);
+    });
+    if (revertVersion[0] > 0) {
+      replicate(getActiveReplicas(), replaced.isPresent()
+          ? putMessage(key, replaced.getStoredValue(), revertVersion[0])
+          : deleteMessage(key, revertVersion[0]), 0, ConsistencyLevel.ONE);
+    }
+  }
+
+  /**
+   * Overwrites the local copy of a key with the coordinator's copy from a repair snapshot, unless
+   * the local copy is newer than the snapshot, i.e. it was committed while the repair was on its
+   * way.
+   *
+   * @param key             the key to be repaired.
+   * @param value           the coordinator's value, or null if the key is deleted.
+   * @param version         the coordinator's version, or 0 if the coordinator does not know the
+   *                        key.
+   * @param snapshotVersion the newest version the coordinator had assigned before the snapshot.
+   */
+  private void repair(String key, String value, long version, long snapshotVersion) {
+    keyVersions.compute(key, (k, current) -> {
+      if (current != null && current > snapshotVersion) {
+        return current;
+      }
+      return store(key, value, version, true);
+    });
+  }
+
+  /**
+   * Writes a key to the local key-value store and keeps the Merkle tree and the bucket index in
+   * sync with it. Logged changes are appended to the change log in the order they took effect.
+   * Must be called from within {@code keyVersions.compute} for the key.
+   *
+   * @param key     the key to be written.
+   * @param value   the new value, or null to delete the key.
+   * @param version the version of the write, or 0 to drop the key's version.
+   * @param logged  true to append the change to the change log, false for a write of the
+   *                coordinator that is not committed yet.
+   * @return the version to be kept for the key, or null to keep none.
+   */
+  private Long store(String key, String value, long version, boolean logged) {
+    String oldValue = value == null ? keyValueStore.remove(key) : keyValueStore.put(key, value);
+    merkleTree.update(key, oldValue, value);
+    if (logged && value != null) {
+      changeLog.append(ChangeEvent.Type.PUT, key, value, version);
+    } else if (logged && oldValue != null) {
+      changeLog.append(ChangeEvent.Type.DELETE, key, null, version);
+    }
+    indexKey(key, value != null || version > 0);
+    return version > 0 ? version : null;
+  }
+
+  /**
+   * Appends a committed write of the coordinator to the change log. The coordinator applies its
+   * writes before they are replicated, so they are only announced to watchers once they reached
+   * enough replicas; a write that is reverted is never seen.
+   *
+   * @param key      the key written to.
+   * @param value    the stored value, or null for a DELETE.
+   * @param version  the version of the write.
+   * @param replaced the copy of the key that the write replaced.
+   */
+  private void announce(String key, String value, long version, VersionedValue replaced) {
+    if (value != null) {
+      changeLog.append(ChangeEvent.Type.PUT, key, value, version);
+    } else if (replaced.isPresent()) {
+      changeLog.append(ChangeEvent.Type.DELETE, key, null, version);
+    }
+  }
+
+  /**
+   * Adds a key to or removes it from the index of its Merkle tree bucket.
+   *
+   * @param key     the key.
+   * @param present true if the key has a value or a tombstone, false if it is gone.
+   */
+  private void indexKey(String key, boolean present) {
+    Set<String> keys = bucketKeys.computeIfAbsent(merkleTree.bucketOf(key),
+        bucket -> ConcurrentHashMap.newKeySet());
+    if (present) {
+      keys.add(key);
+    } else {
+      keys.remove(key);
+    }
+  }
+
+  /**
+   * Builds the commit message for a PUT, in the format "DO_COMMIT_PUT VERSION KEY=VALUE".
+   */
+  private static String putMessage(String key, String value, long version) {
+    return "DO_COMMIT_PUT " + version + " " + key + "=" + value;
+  }
+
+  /**
+   * Builds the commit message for a DELETE, in the format "DO_COMMIT_DELETE VERSION KEY".
+   */
+  private static String deleteMessage(String key, long version) {
+    return "DO_COMMIT_DELETE " + version + " " + key;
+  }
+
+  /**
+   * Gets the replica servers that currently take part in the synchronous commit path.
+   * Replicas suspected by the failure detector are left out until they have been caught up.
+   *
+   * @return the list of available replica servers.
+   */
+  private List<RemoteInterface> getActiveReplicas() {
+    List<RemoteInterface> activeReplicas = new ArrayList<>();
+    for (RemoteInterface replica : replicaServers) {
+      if (failureDetector.isAvailable(replica)) {
+        activeReplicas.add(replica);
+      }
+    }
+    return activeReplicas;
+  }
+
+  /**
+   * Sends a commit message to every replica and waits for as many ACKs as the consistency level
+   * requires. The other ACKs are collected in the background. Suspected replicas, and replicas
+   * that become suspected because their RPC fails, get the message as a hint that is replayed
+   * once they recover. A replica that stays in the commit path after a lost message is repaired
+   * by anti-entropy instead.
+   *
+   * @param activeReplicas the replicas in the commit path.
+   * @param message        the commit message to be sent.
+   * @param required       the number of ACKs to wait for, as returned by
+   *                       {@link ConsistencyLevel#requiredReplicaAnswers(int, int)}.
+   * @param level          the consistency level of the write.
+   * @return true if enough ACKs were received, false otherwise.
+   */
+  private boolean replicate(List<RemoteInterface> activeReplicas, String message, int required,
+      ConsistencyLevel level) {
+    for (RemoteInterface replica : replicaServers) {
+      if (!activeReplicas.contains(replica)) {
+        hintedHandoff.addHint(replica, message);
+      }
+    }
+    // Joining nodes are sent the write without waiting; a lost write is replayed once they join.
+    for (RemoteInterface replica : joiningReplicas) {
+      replicationPool.execute(() -> {
+        try {
+          sendMessageWithACK(replica, message);
+        } catch (RemoteException e) {
+          hintedHandoff.addHint(replica, message);
+        }
+      });
+    }
+
+    Span span = Tracing.startSpan("replicate " + level);
+    try {
+      ReplicaFanOut<Boolean> commits = new ReplicaFanOut<>(replicationPool, activeReplicas,
+          reportingSuccess(replica -> sendMessageWithACK(replica, message)), ack -> ack,
+          replica -> {
+            failureDetector.reportFailure(replica);
+            if (!failureDetector.isAvailable(replica)) {
+              hintedHandoff.addHint(replica, message);
+            }
+          });
+      return commits.await(required, replicationTimeoutMs);
+    } finally {
+      Tracing.finish(span);
+    }
+  }
+
+  /**
+   * Sends a prepare request to every available replica and waits for as many positive votes as
+   * the consistency level requires. A negative vote, e.g. from a replica that has not applied an
+   * earlier write to the key yet, counts like a missing answer. Every replica still receives the
+   * commit and applies it by version.
+   *
+   * @param activeReplicas the replicas in the commit path.
+   * @param prepare        the prepare call to be made.
+   * @param required       the number of positive votes to wait for.
+   * @param level          the consistency level of the write.
+   * @param refused        receives whether a replica voted against the write, which tells a write
+   *                       that conflicts with the replicas' state from one that missed answers.
+   * @return true if the write may be committed, false otherwise.
+   */
+  private boolean prepare(List<RemoteInterface> activeReplicas, ReplicaFanOut.Call<Boolean> prepare,
+      int required, ConsistencyLevel level, boolean[] refused) {
+    if (required == 0) {
+      return true;
+    }
+    Span span = Tracing.startSpan("prepare " + level);
+    try {
+      ReplicaFanOut<Boolean> votes = startPrepare(activeReplicas, prepare);
+      boolean prepared = votes.await(required, replicationTimeoutMs);
+      refused[0] = !prepared && votes.getAnswers().containsValue(false);
+      return prepared;
+    } finally {
+      Tracing.finish(span);
+    }
+  }
+
+  /**
+   * Sends a prepare request to every available replica without waiting for the votes.
+   *
+   * @param activeReplicas the replicas in the commit path.
+   * @param prepare        the prepare call to be made.
+   * @return the votes, of which only the positive ones count towards the required answers.
+   */
+  private ReplicaFanOut<Boolean> startPrepare(List<RemoteInterface> activeReplicas,
+      ReplicaFanOut.Call<Boolean> prepare) {
+    return new ReplicaFanOut<>(replicationPool, activeReplicas, reportingSuccess(prepare),
+        vote -> vote, failureDetector::reportFailure);
+  }
+
+  /**
+   * Wraps a replica call so that each answer is reported to the failure detector, which ends a
+   * series of failed RPCs to that replica.
+   *
+   * @param call the call to be wrapped.
+   * @return the wrapped call.
+   */
+  private <T> ReplicaFanOut.Call<T> reportingSuccess(ReplicaFanOut.Call<T> call) {
+    return replica -> {
+      T answer = call.invoke(replica);
+      failureDetector.reportSuccess(replica);
+      return answer;
+    };
+  }
+
+  /**
+   * Runs the two-phase commit for a PUT at the given consistency level. The value is encoded once
+   * here, and stored and replicated in its encoded form. If the PUT does not reach enough
+   * replicas, it is reverted, so a failed PUT leaves the key as it was.
    *
    * @param key   the key for the new key-value pair.
    * @param value the value for the new key-value pair.
-   * @return true if the PUT operation can be prepared and committed, false otherwise.
+   * @param level the consistency level of the write.
+   * @return true if the PUT was committed on enough replicas, false otherwise.
+   */
+  private boolean commitPut(String key, String value, ConsistencyLevel level) {
+    Span span = Tracing.startSpan("commit PUT");
+    membershipLock.readLock().lock();
+    try {
+      List<RemoteInterface> replicas = getActiveReplicas();
+      int required = level.requiredReplicaAnswers(replicaServers.size(), replicas.size());
+
+      String storedValue = ValueCodec.encode(key, value);
+      boolean[] refused = new boolean[1];
+      boolean prepared = required >= 0
+          && prepare(replicas, preparePutCall(key, storedValue), required, level, refused);
+      boolean committed = prepared;
+      if (prepared) {
+        VersionedValue[] replaced = new VersionedValue[1];
+        long version = applyNewVersion(key, storedValue, replaced);
+        replicas.removeIf(replica -> !failureDetector.isAvailable(replica));
+        committed = replicate(replicas, putMessage(key, storedValue, version), required, level);
+        if (committed) {
+          announce(key, storedValue, version, replaced[0]);
+        } else {
+          revert(key, version, replaced[0]);
+        }
+      }
+
+      if (committed) {
+        System.out.println(getCurrentTimestamp() + "PUT request processed.");
+      } else {
+        // A PUT that replicas voted down, e.g. because a concurrent write of the key got ahead of
+        // it, is refused like a PUT of a present key rather than failed.
+        if (!refused[0]) {
+          failedCommits.incrementAndGet();
+        }
+        System.out.println(getCurrentTimestamp() + "Failed to process PUT request.");
+      }
+      return committed;
+    } finally {
+      membershipLock.readLock().unlock();
+      Tracing.finish(span);
+    }
+  }
+
+  /**
+   * Runs the two-phase commit for a DELETE at the given consistency level. If the DELETE does not
+   * reach enough replicas, it is reverted, so a failed DELETE leaves the key as it was.
+   *
+   * @param key   the key to be deleted.
+   * @param level the consistency level of the write.
+   * @return true if the DELETE was committed on enough replicas, false otherwise.
+   */
+  private boolean commitDelete(String key, ConsistencyLevel level) {
+    Span span = Tracing.startSpan("commit DELETE");
+    membershipLock.readLock().lock();
+    try {
+      List<RemoteInterface> replicas = getActiveReplicas();
+      int required = level.requiredReplicaAnswers(replicaServers.size(), replicas.size());
+
+      boolean[] refused = new boolean[1];
+      boolean prepared = required >= 0
+          && prepare(replicas, replica -> replica.receivePrepareDeleteRequest(key), required,
+              level, refused);
+      boolean committed = prepared;
+      if (prepared) {
+        VersionedValue[] replaced = new VersionedValue[1];
+        long version = applyNewVersion(key, null, replaced);
+        replicas.removeIf(replica -> !failureDetector.isAvailable(replica));
+        committed = replicate(replicas, deleteMessage(key, version), required, level);
+        if (committed) {
+          announce(key, null, version, replaced[0]);
+        } else {
+          revert(key, version, replaced[0]);
+        }
+      }
+
+      if (committed) {
+        System.out.println(getCurrentTimestamp() + "DELETE request processed.");
+      } else {
+        // Likewise for a DELETE that replicas voted down.
+        if (!refused[0]) {
+          failedCommits.incrementAndGet();
+        }
+        System.out.println(getCurrentTimestamp() + "Failed to process DELETE request.");
+      }
+      return committed;
+    } finally {
+      membershipLock.readLock().unlock();
+      Tracing.finish(span);
+    }
+  }
+
+  /**
+   * Commits a batch of queued writes to a hot key. Each write is checked against the key as the
+   * writes before it left it, including writes that were reverted, as if they had arrived one at
+   * a time, so a PUT behind a DELETE succeeds where it would otherwise have lost the race. The
+   * whole batch shares one prepare round, and each write is judged by the votes its own
+   * consistency level requires, so a write at ONE does not fail because an ALL write in the same
+   * batch could not gather its votes. Each write is then applied and replicated in order at its
+   * own level.
+   *
+   * @param key    the key written to.
+   * @param writes the writes, in arrival order.
+   * @return for each write, true if it was committed, false otherwise.
+   */
+  private boolean[] commitWrites(String key, List<WriteCoalescer.Write> writes) {
+    boolean[] results = new boolean[writes.size()];
+    Span span = Tracing.startSpan("commit " + writes.size() + " queued writes");
+    membershipLock.readLock().lock();
+    try {
+      List<RemoteInterface> replicas = getActiveReplicas();
+
+      // The replicas vote on the key as it is now, which the first write that can be accepted
+      // depends on. The other writes depend on the writes before them, which the coordinator
+      // orders.
+      WriteCoalescer.Write first = null;
+      ConsistencyLevel strongest = ConsistencyLevel.ONE;
+      int mostVotes = 0;
+      boolean present = keyValueStore.containsKey(key);
+      for (WriteCoalescer.Write write : writes) {
+        if (write.isDelete() != present) {
+          continue;
+        }
+        present = !write.isDelete();
+        first = first == null ? write : first;
+        int votesRequired = write.getLevel().requiredReplicaAnswers(replicaServers.size(),
+            replicas.size());
+        if (votesRequired > mostVotes) {
+          mostVotes = votesRequired;
+          strongest = write.getLevel();
+        }
+      }
+      if (first == null) {
+        return results;
+      }
+
+      ReplicaFanOut<Boolean> votes = null;
+      long deadline = System.currentTimeMillis() + replicationTimeoutMs;
+      if (mostVotes > 0) {
+        Span prepareSpan = Tracing.startSpan("prepare " + strongest);
+        try {
+          votes = startPrepare(replicas, first.isDelete()
+              ? replica -> replica.receivePrepareDeleteRequest(key)
+              : preparePutCall(key, ValueCodec.encode(key, first.getValue())));
+          votes.await(mostVotes, replicationTimeoutMs);
+        } finally {
+          Tracing.finish(prepareSpan);
+        }
+      }
+
+      for (int i = 0; i < writes.size(); i++) {
+        WriteCoalescer.Write write = writes.get(i);
+        if (write.isDelete() != keyValueStore.containsKey(key)) {
+          continue;
+        }
+        int votesRequired = write.getLevel().requiredReplicaAnswers(replicaServers.size(),
+            replicas.size());
+        // A write that only became possible because an earlier one was reverted has no votes.
+        if (votesRequired < 0 || (votesRequired > 0 && (votes == null
+            || !votes.await(votesRequired, Math.max(0, deadline - System.currentTimeMillis()))))) {
+          // As in commitPut, a write voted down by replicas is refused rather than failed.
+          if (votes == null || !votes.getAnswers().containsValue(false)) {
+            failedCommits.incrementAndGet();
+          }
+          continue;
+        }
+
+        String storedValue = write.isDelete() ? null : ValueCodec.encode(key, write.getValue());
+        VersionedValue[] replaced = new VersionedValue[1];
+        long version = applyNewVersion(key, storedValue, replaced);
+        List<RemoteInterface> available = new ArrayList<>(replicas);
+        available.removeIf(replica -> !failureDetector.isAvailable(replica));
+        int writeRequired = write.getLevel().requiredReplicaAnswers(replicaServers.size(),
+            available.size());
+        results[i] = writeRequired >= 0 && replicate(available, write.isDelete()
+            ? deleteMessage(key, version) : putMessage(key, storedValue, version),
+            writeRequired, write.getLevel());
+        if (results[i]) {
+          announce(key, storedValue, version, replaced[0]);
+        } else {
+          failedCommits.incrementAndGet();
+          revert(key, version, replaced[0]);
+        }
+      }
+      System.out.println(getCurrentTimestamp() + "Processed " + writes.size()
+          + " queued writes to hot key " + key + ".");
+      return results;
+    } finally {
+      membershipLock.readLock().unlock();
+      Tracing.finish(span);
+    }
+  }
+
+  /**
+   * Prepares the PUT operation by checking if the key-value pair can be committed, and commits it
+   * at consistency level QUORUM if so.
+   *
+   * @param key   the key for the new key-value pair.
+   * @param value the value for the new key-value pair.
+   * @return true if the PUT operation was committed, false if the key is present or the PUT did
+   *     not reach enough replicas.
    * @throws RemoteException if a remote communication error occurs.
    */
   @Override
   public boolean preparePut(String key, String value) throws RemoteException {
-    if (canCommitPut(key, value)) {
-      performCommitPut(key, value);
-      return true;
-    }
-    return false;
+    return canCommitPut(key, value) && commitPut(key, value, ConsistencyLevel.QUORUM);
   }
 
   /**
@@ -215,6 +814,19 @@ public class Server implements RemoteInterface {
     return canCommitPut(key, value);
   }
 
+  /**
+   * Receives a prepare PUT request for a value that follows in chunks, and checks if the key can
+   * be put. As for any PUT, this only depends on whether the key is present.
+   *
+   * @param key the key for the new key-value pair.
+   * @return true if the PUT operation can be prepared and committed, false otherwise.
+   * @throws RemoteException if a remote communication error occurs.
+   */
+  @Override
+  public boolean receivePrepareChunkedPutRequest(String key) throws RemoteException {
+    return !keyValueStore.containsKey(key);
+  }
+
   /**
    * Receives the response to the prepare PUT request from another replica server.
    * If the response is positive (canCommit=true), it sends ACKs to all replicas to commit the PUT.
@@ -232,13 +844,17 @@ public class Server implements RemoteInterface {
       return false;
     }
 
-    for (RemoteInterface replica : replicaServers) {
-      if (!sendMessageWithACK(replica, "DO_COMMIT_PUT " + key + "=" + value)) {
-        return false;
-      }
+    membershipLock.readLock().lock();
+    try {
+      long version = keyVersions.getOrDefault(key, 0L);
+      List<RemoteInterface> replicas = getActiveReplicas();
+      int required = ConsistencyLevel.ALL.requiredReplicaAnswers(replicaServers.size(),
+          replicas.size());
+      return required >= 0 && replicate(replicas,
+          putMessage(key, ValueCodec.encode(key, value), version), required, ConsistencyLevel.ALL);
+    } finally {
+      membershipLock.readLock().unlock();
     }
-
-    return true;
   }
 
   /**
@@ -258,40 +874,20 @@ public class Server implements RemoteInterface {
 
   /**
    * Performs the commit operation for the PUT request.
-   * It sends prepare PUT requests to all replicas and waits for their responses.
-   * If all replicas can commit, it performs the PUT operation in the key-value store
-   * and sends ACKs to all replicas to commit the PUT.
+   * It sends prepare PUT requests to all available replicas in parallel and waits for a quorum of
+   * them. If enough of them can commit, it performs the PUT operation in the key-value store
+   * and sends ACKs to the replicas to commit the PUT. Replicas that fail to respond are
+   * handed to the failure detector instead of failing the request.
    *
    * @param key   the key for the new key-value pair.
    * @param value the value for the new key-value pair.
-   * @throws RemoteException if a remote communication error occurs.
+   * @throws RemoteException if the PUT did not reach enough replicas and was reverted, or if a
+   *     remote communication error occurs.
    */
   @Override
   public void performCommitPut(String key, String value) throws RemoteException {
-    boolean allCanCommit = true;
-    for (RemoteInterface replica : replicaServers) {
-      if (!replica.receivePreparePutRequest(key, value)) {
-        allCanCommit = false;
-        break;
-      }
-    }
-
-    if (allCanCommit) {
-      keyValueStore.put(key, value);
-      List<Boolean> ackResults = new ArrayList<>();
-      for (RemoteInterface replica : replicaServers) {
-        sendMessageWithACK(replica, "DO_COMMIT_PUT " + key + "=" + value);
-        ackResults.add(true);
-      }
-
-      boolean allACKsReceived = ackResults.stream().allMatch(result -> result);
-      if (allACKsReceived) {
-        System.out.println(getCurrentTimestamp() + "PUT request processed.");
-      } else {
-        System.out.println(getCurrentTimestamp() + "Failed to process PUT request.");
-      }
-    } else {
-      System.out.println(getCurrentTimestamp() + "Failed to process PUT request.");
+    if (!commitPut(key, value, ConsistencyLevel.QUORUM)) {
+      throw new RemoteException("PUT of key " + key + " was not committed on enough replicas");
     }
   }
 
@@ -320,25 +916,23 @@ public class Server implements RemoteInterface {
     String command = parts[0].trim();
 
     if (command.equalsIgnoreCase("DO_COMMIT_DELETE")) {
-      String key = parts[1].trim();
-      keyValueStore.remove(key);
+      String[] versionKey = parts[1].split(" ", 2);
+      apply(versionKey[1].trim(), null, Long.parseLong(versionKey[0]));
     }
   }
 
   /**
-   * Prepares the DELETE operation by checking if the key exists in the key-value store.
+   * Prepares the DELETE operation by checking if the key exists in the key-value store, and
+   * commits it at consistency level QUORUM if so.
    *
    * @param key the key to be deleted.
-   * @return true if the DELETE operation can be prepared and committed, false otherwise.
+   * @return true if the DELETE operation was committed, false if the key is not present or the
+   *     DELETE did not reach enough replicas.
    * @throws RemoteException if a remote communication error occurs.
    */
   @Override
   public boolean prepareDelete(String key) throws RemoteException {
-    if (canCommitDelete(key)) {
-      performCommitDelete(key);
-      return true;
-    }
-    return false;
+    return canCommitDelete(key) && commitDelete(key, ConsistencyLevel.QUORUM);
   }
 
   /**
@@ -370,13 +964,17 @@ public class Server implements RemoteInterface {
       return false;
     }
 
-    for (RemoteInterface replica : replicaServers) {
-      if (!sendMessageWithACK(replica, "DO_COMMIT_DELETE " + key)) {
-        return false;
-      }
+    membershipLock.readLock().lock();
+    try {
+      long version = keyVersions.getOrDefault(key, 0L);
+      List<RemoteInterface> replicas = getActiveReplicas();
+      int required = ConsistencyLevel.ALL.requiredReplicaAnswers(replicaServers.size(),
+          replicas.size());
+      return required >= 0
+          && replicate(replicas, deleteMessage(key, version), required, ConsistencyLevel.ALL);
+    } finally {
+      membershipLock.readLock().unlock();
     }
-
-    return true;
   }
 
   /**
@@ -395,40 +993,257 @@ public class Server implements RemoteInterface {
 
   /**
    * Performs the commit operation for the DELETE request.
-   * It sends prepare DELETE requests to all replicas and waits for their responses.
-   * If all replicas can commit, it removes the key from the key-value store
-   * and sends ACKs to all replicas to commit the DELETE.
+   * It sends prepare DELETE requests to all available replicas in parallel and waits for a quorum
+   * of them. If enough of them can commit, it removes the key from the key-value store
+   * and sends ACKs to the replicas to commit the DELETE. Replicas that fail to respond are
+   * handed to the failure detector instead of failing the request.
    *
    * @param key the key to be deleted.
-   * @throws RemoteException if a remote communication error occurs.
+   * @throws RemoteException if the DELETE did not reach enough replicas and was reverted, or if a
+   *     remote communication error occurs.
    */
   @Override
   public void performCommitDelete(String key) throws RemoteException {
-    boolean allCanCommit = true;
-    for (RemoteInterface replica : replicaServers) {
-      if (!replica.receivePrepareDeleteRequest(key)) {
-        allCanCommit = false;
-        break;
-      }
+    if (!commitDelete(key, ConsistencyLevel.QUORUM)) {
+      throw new RemoteException("DELETE of key " + key + " was not committed on enough replicas");
+    }
+  }
+
+  /**
+   * Performs a PUT at the given consistency level. The key must not be present yet.
+   * Concurrent writes to a hot key are queued and committed in arrival order.
+   *
+   * @param key   the key for the new key-value pair.
+   * @param value the value for the new key-value pair.
+   * @param level the number of replicas that have to acknowledge the PUT before returning.
+   * @return true if the PUT was committed on enough replicas, false otherwise.
+   * @throws RemoteException if a remote communication error occurs.
+   */
+  @Override
+  public boolean put(String key, String value, ConsistencyLevel level) throws RemoteException {
+    if (hotKeys.record(key)) {
+      return writeCoalescer.write(key, value, level);
+    }
+    return canCommitPut(key, value) && commitPut(key, value, level);
+  }
+
+  /**
+   * Performs a DELETE at the given consistency level. The key must be present.
+   * Concurrent writes to a hot key are queued and committed in arrival order.
+   *
+   * @param key   the key to be deleted.
+   * @param level the number of replicas that have to acknowledge the DELETE before returning.
+   * @return true if the DELETE was committed on enough replicas, false otherwise.
+   * @throws RemoteException if a remote communication error occurs.
+   */
+  @Override
+  public boolean delete(String key, ConsistencyLevel level) throws RemoteException {
+    if (hotKeys.record(key)) {
+      return writeCoalescer.write(key, null, level);
+    }
+    return canCommitDelete(key) && commitDelete(key, level);
+  }
+
+  /**
+   * Stages one chunk of a large value that is uploaded in pieces, either by a client or by the
+   * coordinator replicating a large write.
+   *
+   * @param uploadId the id of the upload, chosen by the sender.
+   * @param index    the position of the chunk, starting at 0.
+   * @param chunk    the chunk.
+   */
+  @Override
+  public void putChunk(String uploadId, int index, String chunk) {
+    chunkAssembler.addChunk(uploadId, index, chunk);
+  }
+
+  /**
+   * Performs a PUT at the given consistency level with a value previously uploaded in chunks.
+   *
+   * @param key        the key for the new key-value pair.
+   * @param uploadId   the id of the upload holding the value.
+   * @param chunkCount the number of chunks the value consists of.
+   * @param level      the number of replicas that have to acknowledge the PUT before returning.
+   * @return true if the PUT was committed on enough replicas, false otherwise.
+   * @throws RemoteException if the upload is incomplete or has expired.
+   */
+  @Override
+  public boolean putChunked(String key, String uploadId, int chunkCount, ConsistencyLevel level)
+      throws RemoteException {
+    String value = chunkAssembler.assemble(uploadId, chunkCount);
+    if (value == null) {
+      throw new RemoteException("Incomplete upload " + uploadId + " for key " + key);
+    }
+    return put(key, value, level);
+  }
+
+  /**
+   * Performs a GET at the given consistency level.
+   * Above ONE, the value is read from as many replicas as the level requires and the copy with the
+   * highest version wins. Replicas that answered with an older copy, including those answering
+   * after the client has been served, are repaired in the background. Concurrent reads of a hot
+   * key at the same level share a single replicated read.
+   *
+   * @param key   the key to be read.
+   * @param level the number of replicas that have to answer before returning.
+   * @return the newest value found, together with its version.
+   * @throws RemoteException if not enough replicas answered, or if a remote communication error
+   *     occurs.
+   */
+  @Override
+  public VersionedValue get(String key, ConsistencyLevel level) throws RemoteException {
+    boolean hot = hotKeys.record(key);
+    VersionedValue value;
+    if (level == ConsistencyLevel.ONE) {
+      value = readLocal(key);
+    } else if (hot) {
+      value = readFlights.execute(level + " " + key, () -> readReplicated(key, level));
+    } else {
+      value = readReplicated(key, level);
+    }
+    System.out.println(getCurrentTimestamp() + "GET request processed");
+    return value;
+  }
+
+  /**
+   * Reads a single key through the read batcher of the given consistency level.
+   */
+  private VersionedValue readReplicated(String key, ConsistencyLevel level)
+      throws RemoteException {
+    return readBatchers.get(level).read(Collections.singletonList(key)).get(key);
+  }
+
+  /**
+   * Performs an MGET at the given consistency level, reading all keys in one request.
+   * Above ONE, concurrent reads at the same level are coalesced, so that each replica receives
+   * one batched read for all of them.
+   *
+   * @param keys  the keys to be read.
+   * @param level the number of replicas that have to answer before returning.
+   * @return the newest value found for each key, together with its version.
+   * @throws RemoteException if not enough replicas answered, or if a remote communication error
+   *     occurs.
+   */
+  @Override
+  public MultiGetResult multiGet(List<String> keys, ConsistencyLevel level)
+      throws RemoteException {
+    for (String key : keys) {
+      hotKeys.record(key);
+    }
+    MultiGetResult result = level == ConsistencyLevel.ONE
+        ? readLocal(keys) : readBatchers.get(level).read(keys);
+    System.out.println(getCurrentTimestamp() + "MGET request processed");
+    return result;
+  }
+
+  /**
+   * Reads a batch of keys from as many replicas as the consistency level requires, keeping the
+   * copy with the highest version of each key and repairing replicas with older copies.
+   *
+   * @param keys  the keys to be read.
+   * @param level the consistency level of the read, either QUORUM or ALL.
+   * @return the newest value found for each key.
+   * @throws RemoteException if not enough replicas answered.
+   */
+  private MultiGetResult replicatedRead(List<String> keys, ConsistencyLevel level)
+      throws RemoteException {
+    List<RemoteInterface> replicas = getActiveReplicas();
+    int required = level.requiredReplicaAnswers(replicaServers.size(), replicas.size());
+    if (required < 0) {
+      throw new RemoteException("Not enough replicas available for a " + level + " read");
     }
 
-    if (allCanCommit) {
-      keyValueStore.remove(key);
+    MultiGetResult local = readLocal(keys);
+    ReplicaFanOut<MultiGetResult> reads = new ReplicaFanOut<>(replicationPool, replicas,
+        reportingSuccess(replica -> replica.readLocal(keys)), answer -> true,
+        failureDetector::reportFailure);
+    if (!reads.await(required, replicationTimeoutMs)) {
+      throw new RemoteException("Not enough replicas answered a " + level + " read");
+    }
 
-      List<Boolean> ackResults = new ArrayList<>();
-      for (RemoteInterface replica : replicaServers) {
-        sendMessageWithACK(replica, "DO_COMMIT_DELETE " + key);
+    MultiGetResult latest = new MultiGetResult();
+    for (String key : keys) {
+      VersionedValue newest = local.get(key);
+      for (MultiGetResult answer : reads.getAnswers().values()) {
+        if (answer.get(key).getVersion() > newest.getVersion()) {
+          newest = answer.get(key);
+        }
+      }
+      latest.put(key, newest);
+      if (local.get(key).getVersion() < newest.getVersion()) {
+        apply(key, newest.getStoredValue(), newest.getVersion());
       }
+    }
 
-      boolean allAcksReceived = ackResults.stream().allMatch(result -> result);
-      if (allAcksReceived) {
-        System.out.println(getCurrentTimestamp() + "DELETE request processed.");
-      } else {
-        System.out.println(getCurrentTimestamp() + "Failed to process DELETE request.");
+    reads.forEachAnswer((replica, answer) -> {
+      List<String> messages = new ArrayList<>();
+      for (String key : keys) {
+        VersionedValue newest = latest.get(key);
+        if (answer.get(key).getVersion() < newest.getVersion()) {
+          messages.add(newest.isPresent()
+              ? putMessage(key, newest.getStoredValue(), newest.getVersion())
+              : deleteMessage(key, newest.getVersion()));
+        }
       }
-    } else {
-      System.out.println(getCurrentTimestamp() + "Failed to process DELETE request.");
+      if (!messages.isEmpty()) {
+        replicationPool.execute(() -> {
+          try {
+            for (String message : messages) {
+              sendMessageWithACK(replica, message);
+            }
+          } catch (RemoteException e) {
+            failureDetector.reportFailure(replica);
+          }
+        });
+      }
+    });
+    return latest;
+  }
+
+  /**
+   * Reads the local copy of a key without contacting other replicas.
+   *
+   * @param key the key to be read.
+   * @return the local value of the key, together with its version.
+   */
+  @Override
+  public VersionedValue readLocal(String key) {
+    return new VersionedValue(keyValueStore.get(key), keyVersions.getOrDefault(key, 0L));
+  }
+
+  /**
+   * Reads the local copies of several keys without contacting other replicas.
+   *
+   * @param keys the keys to be read.
+   * @return the local value of each key, together with its version.
+   */
+  @Override
+  public MultiGetResult readLocal(List<String> keys) {
+    MultiGetResult result = new MultiGetResult();
+    for (String key : keys) {
+      result.put(key, readLocal(key));
     }
+    return result;
+  }
+
+  /**
+   * Reads the committed PUT and DELETE events of this server for keys starting with the given
+   * prefix. The call waits up to {@code waitMs} (capped at 30 seconds) for a matching event.
+   * The batch is marked as truncated if the caller resumes from a change log of an earlier run of
+   * this server.
+   *
+   * @param prefix       the key prefix to be watched; an exact key or "" for all keys.
+   * @param incarnation  the incarnation id of the change log {@code fromSequence} refers to, or 0
+   *                     if unknown.
+   * @param fromSequence the sequence number to resume from, or -1 to start with new events.
+   * @param maxEvents    the maximum number of events to be returned.
+   * @param waitMs       the maximum time to wait for a matching event in milliseconds.
+   * @return the matching events and the sequence number to resume from.
+   */
+  @Override
+  public ChangeBatch watch(String prefix, long incarnation, long fromSequence, int maxEvents,
+      long waitMs) {
+    return changeLog.read(prefix, incarnation, fromSequence, maxEvents, Math.min(waitMs, 30000L));
   }
 
   /**
@@ -440,11 +1255,59 @@ public class Server implements RemoteInterface {
   @Override
   public void updateKeyValueStore(Map<String, String> newKeyValueStore) throws RemoteException {
     keyValueStore = new ConcurrentHashMap<>(newKeyValueStore);
+    keyVersions.clear();
+    bucketKeys.clear();
+    for (String key : keyValueStore.keySet()) {
+      indexKey(key, true);
+    }
+    merkleTree.rebuild(keyValueStore);
+  }
+
+  /**
+   * Gets the hashes of the given nodes of this server's Merkle tree.
+   *
+   * @param level   the level of the nodes, where 0 is the root.
+   * @param indexes the indexes of the nodes within the level.
+   * @return the hashes of the nodes, in the order of {@code indexes}.
+   */
+  @Override
+  public long[] getMerkleHashes(int level, int[] indexes) {
+    return merkleTree.getHashes(level, indexes);
+  }
+
+  /**
+   * Replaces the contents of the given Merkle tree buckets with the provided entries, including
+   * their versions. Keys in those buckets that are missing from {@code entries} are deleted. Keys
+   * with a version newer than {@code snapshotVersion} were written after the entries were read
+   * and are left alone.
+   *
+   * @param buckets         the leaf buckets to be repaired.
+   * @param entries         the coordinator's entries and tombstones for those buckets.
+   * @param snapshotVersion the newest version the coordinator had assigned before reading them.
+   */
+  @Override
+  public void repairBuckets(int[] buckets, Map<String, VersionedValue> entries,
+      long snapshotVersion) {
+    for (int bucket : buckets) {
+      for (String key : bucketKeys.getOrDefault(bucket, Collections.emptySet())) {
+        if (!entries.containsKey(key)) {
+          repair(key, null, 0, snapshotVersion);
+        }
+      }
+    }
+    for (Map.Entry<String, VersionedValue> entry : entries.entrySet()) {
+      VersionedValue coordinatorCopy = entry.getValue();
+      if (!coordinatorCopy.equals(readLocal(entry.getKey()))) {
+        repair(entry.getKey(), coordinatorCopy.getStoredValue(), coordinatorCopy.getVersion(),
+            snapshotVersion);
+      }
+    }
   }
 
   /**
    * Receives a message with ACK from another replica and performs the corresponding action
-   * (PUT or DELETE) in the key-value store.
+   * (PUT or DELETE) in the key-value store. A DO_COMMIT_CHUNKED message stands for a larger message
+   * that has been uploaded in chunks before.
    *
    * @param message the message with the action to be performed.
    * @return true if the action is successfully performed, false otherwise.
@@ -456,18 +1319,27 @@ public class Server implements RemoteInterface {
     String command = parts[0].trim();
 
     if (command.equalsIgnoreCase("DO_COMMIT_PUT")) {
-      String[] keyValue = parts[1].split("=", 2);
+      String[] versionKeyValue = parts[1].split(" ", 2);
+      long version = Long.parseLong(versionKeyValue[0]);
+      String[] keyValue = versionKeyValue[1].split("=", 2);
       String key = keyValue[0].trim();
       String value = keyValue[1].trim();
 
-      keyValueStore.put(key, value);
+      apply(key, value, version);
 
       return true;
     } else if (command.equalsIgnoreCase("DO_COMMIT_DELETE")) {
-      String key = parts[1].trim();
+      String[] versionKey = parts[1].split(" ", 2);
+      long version = Long.parseLong(versionKey[0]);
+      String key = versionKey[1].trim();
 
-      keyValueStore.remove(key);
+      apply(key, null, version);
       return true;
+    } else if (command.equalsIgnoreCase("DO_COMMIT_CHUNKED")) {
+      String[] uploadCount = parts[1].trim().split(" ");
+      String chunkedMessage = chunkAssembler.assemble(uploadCount[0],
+          Integer.parseInt(uploadCount[1]));
+      return chunkedMessage != null && receiveMessageWithACK(chunkedMessage);
     }
 
     return false;
@@ -475,15 +1347,29 @@ public class Server implements RemoteInterface {
 
   /**
    * Registers a new replica server and adds it to the set of replica servers.
-   * If it's the first replica server, it becomes the coordinator.
+   * If it's the first replica server, it becomes the coordinator and starts its failure detector.
    *
    * @param replicaServer the replica server to be registered.
    */
   @Override
   public void registerReplicaServer(RemoteInterface replicaServer) {
+    replicaServer = Tracing.wrap(replicaServer);
+    failureDetector.track(replicaServer);
+    addReplicaServer(replicaServer);
+  }
+
+  /**
+   * Adds a replica server that the failure detector already tracks to the set of replica servers.
+   * If it's the first replica server, it becomes the coordinator and starts its failure detector.
+   *
+   * @param replicaServer the replica server to be added.
+   */
+  private void addReplicaServer(RemoteInterface replicaServer) {
     replicaServers.add(replicaServer);
     if (replicaServers.size() == 1) {
       isCoordinator = true;
+      failureDetector.start();
+      antiEntropyService.start();
     }
   }
 
@@ -495,9 +1381,265 @@ public class Server implements RemoteInterface {
    */
   @Override
   public void unregisterReplicaServer(RemoteInterface replicaServer) {
+    replicaServer = Tracing.wrap(replicaServer);
     replicaServers.remove(replicaServer);
+    failureDetector.untrack(replicaServer);
+    hintedHandoff.clear(replicaServer);
     if (replicaServers.size() == 0) {
-      isCoordinator = false;
+      // The node that started the cluster stays the coordinator of its membership view.
+      isCoordinator = nodeId.equals(membershipService.getView().getCoordinatorId());
+      failureDetector.stop();
+      antiEntropyService.stop();
+    }
+  }
+
+  /**
+   * Answers a heartbeat sent by the coordinator's failure detector.
+   *
+   * @return the node id of this server.
+   */
+  @Override
+  public String heartbeat() {
+    return nodeId;
+  }
+
+  /**
+   * Gets the number of PUTs and DELETEs this server accepted as the coordinator but could not
+   * commit on enough replicas, because too few replicas answered or acknowledged them. Unlike
+   * writes refused because of their precondition, e.g. a PUT of a key that is present here or on
+   * the replicas that voted, these count as failed, although both return false to the caller.
+   *
+   * @return the number of failed commits since the server started.
+   */
+  public long getFailedCommits() {
+    return failedCommits.get();
+  }
+
+  /**
+   * Gets the cluster membership as seen by this server. The coordinator reports the state of
+   * every registered replica as tracked by its failure detector.
+   *
+   * @return a map from node id to the liveness state of the node.
+   */
+  @Override
+  public Map<String, String> getClusterMembership() {
+    Map<String, String> membership = new LinkedHashMap<>();
+    membership.put(nodeId, isCoordinator ? "COORDINATOR" : "ALIVE");
+    for (Map.Entry<String, FailureDetector.ReplicaState> entry
+        : failureDetector.getStates().entrySet()) {
+      membership.put(entry.getKey(), entry.getValue().name());
+    }
+    return membership;
+  }
+
+  /**
+   * Gets the keys this server currently receives most of its requests for.
+   *
+   * @return a map from each hot key to its estimated recent access count, hottest first.
+   */
+  @Override
+  public Map<String, Long> getHotKeys() {
+    return hotKeys.getHotKeys();
+  }
+
+  /**
+   * Adds a node to the cluster. A node that is not the coordinator forwards the request to the
+   * coordinator. The coordinator first catches the node up with an anti-entropy pass while it is
+   * joining: commits go on meanwhile and send their writes to the node as well, without counting
+   * its answers. Only then are commits held back briefly to make the node a replica and publish a
+   * new membership view, after which writes it missed while joining are replayed.
+   *
+   * @param node the node joining the cluster.
+   * @return the membership view that includes the node.
+   * @throws RemoteException if the node or the coordinator could not be reached.
+   */
+  @Override
+  public MembershipView join(RemoteInterface node) throws RemoteException {
+    node = Tracing.wrap(node);
+    if (!isCoordinator) {
+      return MembershipService.connect(membershipService.getView().getCoordinatorId()).join(node);
+    }
+
+    String memberId = node.heartbeat();
+    // A write applied before the node is added here is copied by the anti-entropy pass, and any
+    // later write is also sent to the node.
+    joiningReplicas.add(node);
+    try {
+      antiEntropyService.synchronize(node);
+    } catch (RemoteException e) {
+      joiningReplicas.remove(node);
+      hintedHandoff.clear(node);
+      throw e;
+    }
+
+    MembershipView view;
+    membershipLock.writeLock().lock();
+    try {
+      RemoteInterface previous = memberStubs.put(memberId, node);
+      if (previous != null) {
+        unregisterReplicaServer(previous);
+      }
+      // The node id is known from the heartbeat above, so no RPC is made while commits wait.
+      failureDetector.track(node, memberId);
+      addReplicaServer(node);
+      joiningReplicas.remove(node);
+      view = membershipService.addMember(memberId);
+    } finally {
+      membershipLock.writeLock().unlock();
+    }
+    try {
+      hintedHandoff.replay(node);
+    } catch (RemoteException e) {
+      // The failure detector suspects the node, and hints left are replayed once it recovers.
+    }
+    System.out.println(getCurrentTimestamp() + "Replica " + memberId + " joined the cluster.");
+    return view;
+  }
+
+  /**
+   * Removes a node from the cluster. A node that is not the coordinator forwards the request to
+   * the coordinator, which stops replicating to the node and publishes a new membership view.
+   * The node is not contacted, so a node that is down can be removed as well.
+   *
+   * @param memberId the node id of the node leaving the cluster.
+   * @return the membership view without the node.
+   * @throws RemoteException if the coordinator could not be reached.
+   */
+  @Override
+  public MembershipView leave(String memberId) throws RemoteException {
+    if (!isCoordinator) {
+      return MembershipService.connect(membershipService.getView().getCoordinatorId())
+          .leave(memberId);
+    }
+
+    MembershipView view;
+    membershipLock.writeLock().lock();
+    try {
+      RemoteInterface node = memberStubs.remove(memberId);
+      if (node != null) {
+        unregisterReplicaServer(node);
+      }
+      view = membershipService.removeMember(memberId);
+    } finally {
+      membershipLock.writeLock().unlock();
+    }
+    System.out.println(getCurrentTimestamp() + "Replica " + memberId + " left the cluster.");
+    return view;
+  }
+
+  /**
+   * Merges the membership view gossiped by another node into this server's view.
+   *
+   * @param view the other node's view.
+   * @return this server's view after merging, for the other node to merge in turn.
+   */
+  @Override
+  public MembershipView exchangeMembership(MembershipView view) {
+    return membershipService.merge(view);
+  }
+
+  /**
+   * Gets this server's membership view.
+   *
+   * @return the membership view.
+   */
+  @Override
+  public MembershipView getMembershipView() {
+    return membershipService.getView();
+  }
+
+  /**
+   * Invokes another method of this server within the caller's trace, recording a span for it.
+   *
+   * @param traceId        the id of the caller's trace.
+   * @param parentSpanId   the id of the caller's span.
+   * @param method         the name of the method to be invoked.
+   * @param parameterTypes the parameter types of the method.
+   * @param args           the arguments of the call.
+   * @return the result of the call, together with the spans this server recorded for the trace.
+   * @throws RemoteException if the invoked method throws it, or if the method is unknown.
+   */
+  @Override
+  public TracedResult invokeTraced(long traceId, long parentSpanId, String method,
+      Class<?>[] parameterTypes, Object[] args) throws RemoteException {
+    return Tracing.serve(this, nodeId, traceId, parentSpanId, method, parameterTypes, args);
+  }
+
+  /**
+   * Gets the slowest traces this server has recorded spans for.
+   *
+   * @param minDurationMs the minimum duration of the traces to be returned, in milliseconds.
+   * @param limit         the maximum number of traces to be returned.
+   * @return the spans of each trace, slowest trace first.
+   */
+  @Override
+  public List<List<Span>> getSlowTraces(long minDurationMs, int limit) {
+    return TraceCollector.getSlowTraces(minDurationMs, limit);
+  }
+
+  /**
+   * The ReplicaListener class reacts to state changes reported by the failure detector.
+   * A recovered replica first receives the hinted writes it missed, then a full anti-entropy pass.
+   * Commits go on meanwhile and leave hints for the replica, which are replayed once more after
+   * it has rejoined the commit path, so that it does not miss any update made while it was
+   * suspected.
+   */
+  private class ReplicaListener implements FailureDetector.Listener {
+
+    @Override
+    public void onSuspect(RemoteInterface replica) {
+      System.out.println(getCurrentTimestamp() + "Replica removed from the commit path.");
+    }
+
+    @Override
+    public void onRecover(RemoteInterface replica) {
+      try {
+        hintedHandoff.replay(replica);
+        antiEntropyService.synchronize(replica);
+      } catch (RemoteException e) {
+        // The replica stays suspected and is retried on its next heartbeat.
+        return;
+      }
+      failureDetector.markAlive(replica);
+      try {
+        hintedHandoff.replay(replica);
+      } catch (RemoteException e) {
+        // Hints that could not be replayed are repaired by anti-entropy.
+      }
+    }
+  }
+
+  /**
+   * The RepairSource class gives the anti-entropy service access to the coordinator's replicas
+   * and pushes the coordinator's entries for divergent buckets. Commits go on during a repair: the
+   * entries are read key by key, and the replica keeps any copy whose version was assigned after
+   * the snapshot started, so a repair never overwrites an update that is committed concurrently.
+   */
+  private class RepairSource implements AntiEntropyService.Source {
+
+    @Override
+    public List<RemoteInterface> getActiveReplicas() {
+      return Server.this.getActiveReplicas();
+    }
+
+    @Override
+    public void repairBuckets(RemoteInterface replica, int[] buckets) throws RemoteException {
+      long snapshotVersion = versionClock.get();
+      Map<String, VersionedValue> entries = new HashMap<>();
+      for (int bucket : buckets) {
+        for (String key : bucketKeys.getOrDefault(bucket, Collections.emptySet())) {
+          // Read value and version together, so a concurrent write is either seen whole or not.
+          keyVersions.compute(key, (k, current) -> {
+            VersionedValue entry = new VersionedValue(keyValueStore.get(key),
+                current == null ? 0 : current);
+            if (entry.isPresent() || entry.getVersion() > 0) {
+              entries.put(key, entry);
+            }
+            return current;
+          });
+        }
+      }
+      replica.repairBuckets(buckets, entries, snapshotVersion);
     }
   }
 }
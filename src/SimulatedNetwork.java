@@ -0,0 +1,155 @@
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.rmi.RemoteException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The SimulatedNetwork class connects servers running in one process through links that inject
+ * the faults of a real network: latency, lost requests and responses, slow nodes, and partitions.
+ * <p>
+ * Whether a call on a link is lost and how long it is delayed only depends on the seed, the two
+ * ends of the link, and the number of calls made on the link before, so a run with the same seed
+ * sees the same faults on each link.
+ */
+public class SimulatedNetwork {
+  private final long seed;
+  private volatile int minLatencyMs;
+  private volatile int maxLatencyMs;
+  private volatile double lossRate;
+  private final Map<String, Integer> slowNodes;
+  private final Set<String> partitions;
+
+  /**
+   * Constructs a new SimulatedNetwork without faults.
+   *
+   * @param seed the seed all fault decisions are derived from.
+   */
+  public SimulatedNetwork(long seed) {
+    this.seed = seed;
+    this.slowNodes = new ConcurrentHashMap<>();
+    this.partitions = ConcurrentHashMap.newKeySet();
+  }
+
+  /**
+   * Sets the latency added to every call, drawn uniformly from the given range.
+   *
+   * @param minMs the minimum latency in milliseconds.
+   * @param maxMs the maximum latency in milliseconds.
+   */
+  public void setLatency(int minMs, int maxMs) {
+    this.minLatencyMs = minMs;
+    this.maxLatencyMs = Math.max(minMs, maxMs);
+  }
+
+  /**
+   * Sets the probability that a call is lost. Half of the lost calls lose the request, so the
+   * callee never sees it; the other half lose the response after the callee has handled it.
+   *
+   * @param lossRate the probability, between 0 and 1.
+   */
+  public void setLossRate(double lossRate) {
+    this.lossRate = lossRate;
+  }
+
+  /**
+   * Makes a node slow, adding a fixed delay to every call it receives.
+   *
+   * @param nodeId  the node to be slowed down.
+   * @param delayMs the extra delay in milliseconds.
+   */
+  public void slowDown(String nodeId, int delayMs) {
+    slowNodes.put(nodeId, delayMs);
+  }
+
+  /**
+   * Cuts the links between two nodes in both directions.
+   *
+   * @param first  one node.
+   * @param second the other node.
+   */
+  public void partition(String first, String second) {
+    partitions.add(first + "|" + second);
+    partitions.add(second + "|" + first);
+  }
+
+  /**
+   * Removes all partitions, slow nodes and losses. The latency stays as it is.
+   */
+  public void heal() {
+    partitions.clear();
+    slowNodes.clear();
+    lossRate = 0;
+  }
+
+  /**
+   * Creates the link through which one node calls another.
+   *
+   * @param from   the calling node.
+   * @param to     the called node.
+   * @param target the called server.
+   * @return a stub that sends calls to {@code target} through the simulated network.
+   */
+  public RemoteInterface link(String from, String to, RemoteInterface target) {
+    AtomicLong calls = new AtomicLong();
+    long linkSeed = seed * 31 + (from + "->" + to).hashCode();
+    return (RemoteInterface) Proxy.newProxyInstance(RemoteInterface.class.getClassLoader(),
+        new Class<?>[] {RemoteInterface.class}, (proxy, method, args) -> {
+          if (method.getDeclaringClass() == Object.class) {
+            switch (method.getName()) {
+              case "equals":
+                return proxy == args[0];
+              case "hashCode":
+                return System.identityHashCode(proxy);
+              default:
+                return from + "->" + to;
+            }
+          }
+
+          long random = mix(linkSeed + calls.incrementAndGet());
+          if (partitions.contains(from + "|" + to)) {
+            throw new RemoteException("Simulated partition between " + from + " and " + to);
+          }
+          boolean lost = toUnit(random) < lossRate;
+          boolean responseLost = lost && (random & 1) == 0;
+          if (lost && !responseLost) {
+            throw new RemoteException("Simulated loss of a request from " + from + " to " + to);
+          }
+
+          int latency = minLatencyMs + (int) (toUnit(mix(random)) * (maxLatencyMs - minLatencyMs
+              + 1));
+          latency += slowNodes.getOrDefault(to, 0);
+          if (latency > 0) {
+            Thread.sleep(latency);
+          }
+          Object result;
+          try {
+            result = method.invoke(target, args);
+          } catch (InvocationTargetException e) {
+            throw e.getCause();
+          }
+          if (responseLost) {
+            throw new RemoteException("Simulated loss of a response from " + to + " to " + from);
+          }
+          return result;
+        });
+  }
+
+  /**
+   * Scrambles the bits of a number, the finalizer of the SplitMix64 generator.
+   */
+  private static long mix(long z) {
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    return z ^ (z >>> 31);
+  }
+
+  /**
+   * Maps a scrambled number to a double in [0, 1).
+   */
+  private static double toUnit(long random) {
+    return (random >>> 11) * 0x1.0p-53;
+  }
+}
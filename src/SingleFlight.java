@@ -0,0 +1,79 @@
+import java.rmi.RemoteException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * The SingleFlight class lets concurrent identical requests share a single execution. The first
+ * caller for a key runs the call, and callers arriving while it is in flight wait for its result
+ * instead of running the call again.
+ *
+ * @param <V> the type of the result.
+ */
+public class SingleFlight<V> {
+
+  /**
+   * A call whose result can be shared.
+   *
+   * @param <V> the type of the result.
+   */
+  public interface Call<V> {
+
+    /**
+     * Runs the call.
+     *
+     * @return the result.
+     * @throws RemoteException if the call failed.
+     */
+    V call() throws RemoteException;
+  }
+
+  private final Map<String, CompletableFuture<V>> flights;
+
+  /**
+   * Constructs a new SingleFlight.
+   */
+  public SingleFlight() {
+    this.flights = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Runs a call, or joins the execution of an identical call already in flight.
+   *
+   * @param key  the key identifying identical calls.
+   * @param call the call to be run.
+   * @return the result of the call.
+   * @throws RemoteException if the shared call failed.
+   */
+  public V execute(String key, Call<V> call) throws RemoteException {
+    CompletableFuture<V> flight = new CompletableFuture<>();
+    CompletableFuture<V> running = flights.putIfAbsent(key, flight);
+    if (running == null) {
+      try {
+        V result = call.call();
+        flight.complete(result);
+        return result;
+      } catch (RemoteException | RuntimeException e) {
+        flight.completeExceptionally(e);
+        throw e;
+      } finally {
+        // Only a flight ended by an Error is still open here; its waiters must not hang.
+        flight.completeExceptionally(new RemoteException("Shared call failed"));
+        flights.remove(key, flight);
+      }
+    }
+
+    try {
+      return running.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RemoteException) {
+        throw (RemoteException) e.getCause();
+      }
+      throw new RemoteException("Shared call failed", e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RemoteException("Interrupted while waiting for a shared call", e);
+    }
+  }
+}
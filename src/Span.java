@@ -0,0 +1,139 @@
+import java.io.Serializable;
+
+/**
+ * The Span class records one timed step of a traced request on one node, such as a client call,
+ * the handling of an RPC, or a phase of the two-phase commit.
+ * <p>
+ * Spans of the same request share a trace id, and each span except the root names the span it
+ * was started under, so the spans of a trace form a tree.
+ */
+public class Span implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private final long traceId;
+  private final long spanId;
+  private final long parentId;
+  private final String name;
+  private final String nodeId;
+  private final long startMillis;
+  private final transient long startNanos;
+  // The span that was current on the starting thread, restored when this span finishes.
+  private final transient Span previous;
+  private long durationNanos;
+  private String error;
+
+  /**
+   * Constructs a new Span and starts its timer.
+   *
+   * @param traceId  the id of the trace the span belongs to.
+   * @param spanId   the id of the span.
+   * @param parentId the id of the parent span, or 0 for the root of the trace.
+   * @param name     the name of the step.
+   * @param nodeId   the node the step runs on.
+   * @param previous the span that was current on the starting thread, or null.
+   */
+  Span(long traceId, long spanId, long parentId, String name, String nodeId, Span previous) {
+    this.traceId = traceId;
+    this.spanId = spanId;
+    this.parentId = parentId;
+    this.name = name;
+    this.nodeId = nodeId;
+    this.previous = previous;
+    this.startMillis = System.currentTimeMillis();
+    this.startNanos = System.nanoTime();
+  }
+
+  /**
+   * Stops the timer of the span.
+   *
+   * @param failure the failure that ended the step, or null if it succeeded.
+   */
+  void finish(Throwable failure) {
+    durationNanos = System.nanoTime() - startNanos;
+    if (failure != null) {
+      error = failure.getClass().getSimpleName() + ": " + failure.getMessage();
+    }
+  }
+
+  Span getPrevious() {
+    return previous;
+  }
+
+  /**
+   * Gets the id of the trace the span belongs to.
+   *
+   * @return the trace id.
+   */
+  public long getTraceId() {
+    return traceId;
+  }
+
+  /**
+   * Gets the id of the span.
+   *
+   * @return the span id.
+   */
+  public long getSpanId() {
+    return spanId;
+  }
+
+  /**
+   * Gets the id of the parent span.
+   *
+   * @return the parent span id, or 0 for the root of the trace.
+   */
+  public long getParentId() {
+    return parentId;
+  }
+
+  /**
+   * Gets the name of the step.
+   *
+   * @return the name.
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Gets the node the step ran on.
+   *
+   * @return the node id.
+   */
+  public String getNodeId() {
+    return nodeId;
+  }
+
+  /**
+   * Gets the wall-clock time the step started at.
+   *
+   * @return the start time in milliseconds since the epoch.
+   */
+  public long getStartMillis() {
+    return startMillis;
+  }
+
+  /**
+   * Gets the duration of the step.
+   *
+   * @return the duration in nanoseconds.
+   */
+  public long getDurationNanos() {
+    return durationNanos;
+  }
+
+  /**
+   * Gets the failure that ended the step.
+   *
+   * @return a description of the failure, or null if the step succeeded.
+   */
+  public String getError() {
+    return error;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s [%s] %.2f ms%s", name, nodeId, durationNanos / 1e6,
+        error == null ? "" : " (" + error + ")");
+  }
+}
@@ -0,0 +1,236 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * The TraceCollector class keeps the finished spans of the most recent traces of this process in
+ * memory, so that slow requests can be looked up and broken down by hop.
+ * <p>
+ * The collector retains {@code kv.trace.maxTraces} traces (default 1000). If
+ * {@code kv.trace.file} is set, every span is also appended to that file, one span per line. The
+ * file is written by a background thread, so recording a span never waits for the disk; if the
+ * writer falls more than {@code kv.trace.fileQueueSize} spans (default 10000) behind, further
+ * spans are left out of the file.
+ */
+public final class TraceCollector {
+  private static final int MAX_TRACES = Integer.getInteger("kv.trace.maxTraces", 1000);
+  private static final Map<Long, Trace> TRACES = new LinkedHashMap<Long, Trace>() {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Long, Trace> eldest) {
+      return size() > MAX_TRACES;
+    }
+  };
+  private static final BlockingQueue<String> FILE_QUEUE =
+      new LinkedBlockingQueue<>(Integer.getInteger("kv.trace.fileQueueSize", 10000));
+  private static final Writer FILE = openFile(System.getProperty("kv.trace.file"));
+
+  private TraceCollector() {
+  }
+
+  /**
+   * Records a finished span. Spans that have been recorded before are ignored, so spans passed
+   * back along the RPC chain can be recorded again safely.
+   *
+   * @param span the finished span.
+   */
+  public static void record(Span span) {
+    boolean added;
+    synchronized (TraceCollector.class) {
+      added = TRACES.computeIfAbsent(span.getTraceId(), id -> new Trace()).add(span);
+    }
+    if (added && FILE != null) {
+      // Losing a span must never fail or hold up the traced request.
+      FILE_QUEUE.offer(String.format("%016x %016x %016x %s %s %d %d %s%n", span.getTraceId(),
+          span.getSpanId(), span.getParentId(), span.getNodeId(), span.getName(),
+          span.getStartMillis(), span.getDurationNanos() / 1000,
+          span.getError() == null ? "" : span.getError()));
+    }
+  }
+
+  /**
+   * Records several finished spans.
+   *
+   * @param spans the finished spans.
+   */
+  public static void recordAll(Collection<Span> spans) {
+    for (Span span : spans) {
+      record(span);
+    }
+  }
+
+  /**
+   * Gets the spans of a trace recorded by this process.
+   *
+   * @param traceId the id of the trace.
+   * @return the spans, ordered by start time.
+   */
+  public static synchronized List<Span> getTrace(long traceId) {
+    Trace trace = TRACES.get(traceId);
+    List<Span> spans = trace == null ? new ArrayList<>() : new ArrayList<>(trace.spans.values());
+    spans.sort(Comparator.comparingLong(Span::getStartMillis));
+    return spans;
+  }
+
+  /**
+   * Gets a span recorded by this process together with all spans recorded below it, e.g. the
+   * spans of a single traced call.
+   *
+   * @param traceId the id of the trace.
+   * @param spanId  the id of the span at the top.
+   * @return the spans, or an empty list if the span has not been recorded.
+   */
+  public static synchronized List<Span> getSubtree(long traceId, long spanId) {
+    List<Span> spans = new ArrayList<>();
+    Trace trace = TRACES.get(traceId);
+    Span top = trace == null ? null : trace.spans.get(spanId);
+    if (top == null) {
+      return spans;
+    }
+    spans.add(top);
+    for (int i = 0; i < spans.size(); i++) {
+      spans.addAll(trace.children.getOrDefault(spans.get(i).getSpanId(), new ArrayList<>()));
+    }
+    return spans;
+  }
+
+  /**
+   * Gets the slowest traces recorded by this process, slowest first. The duration of a trace is
+   * the duration of its root span, or of its longest span if the root was recorded elsewhere.
+   *
+   * @param minDurationMs the minimum duration of the traces to be returned, in milliseconds.
+   * @param limit         the maximum number of traces to be returned.
+   * @return the spans of each trace, ordered by start time.
+   */
+  public static synchronized List<List<Span>> getSlowTraces(long minDurationMs, int limit) {
+    List<Long> traceIds = new ArrayList<>();
+    Map<Long, Long> durations = new HashMap<>();
+    for (Map.Entry<Long, Trace> trace : TRACES.entrySet()) {
+      long duration = 0;
+      for (Span span : trace.getValue().spans.values()) {
+        if (span.getParentId() == 0) {
+          duration = span.getDurationNanos();
+          break;
+        }
+        duration = Math.max(duration, span.getDurationNanos());
+      }
+      if (duration >= minDurationMs * 1_000_000L) {
+        traceIds.add(trace.getKey());
+        durations.put(trace.getKey(), duration);
+      }
+    }
+    traceIds.sort((a, b) -> Long.compare(durations.get(b), durations.get(a)));
+
+    List<List<Span>> slowTraces = new ArrayList<>();
+    for (long traceId : traceIds.subList(0, Math.min(limit, traceIds.size()))) {
+      slowTraces.add(getTrace(traceId));
+    }
+    return slowTraces;
+  }
+
+  /**
+   * Formats a trace as a tree, one span per line, with child spans indented under their parent.
+   *
+   * @param trace the spans of the trace.
+   * @return the formatted lines.
+   */
+  public static List<String> format(List<Span> trace) {
+    Map<Long, List<Span>> children = new HashMap<>();
+    Map<Long, Span> bySpanId = new HashMap<>();
+    for (Span span : trace) {
+      bySpanId.put(span.getSpanId(), span);
+    }
+    List<Span> roots = new ArrayList<>();
+    for (Span span : trace) {
+      if (bySpanId.containsKey(span.getParentId())) {
+        children.computeIfAbsent(span.getParentId(), id -> new ArrayList<>()).add(span);
+      } else {
+        roots.add(span);
+      }
+    }
+    List<String> lines = new ArrayList<>();
+    for (Span root : roots) {
+      format(root, 0, children, lines);
+    }
+    return lines;
+  }
+
+  private static void format(Span span, int depth, Map<Long, List<Span>> children,
+      List<String> lines) {
+    StringBuilder line = new StringBuilder();
+    for (int i = 0; i < depth; i++) {
+      line.append("  ");
+    }
+    lines.add(line.append(span).toString());
+    for (Span child : children.getOrDefault(span.getSpanId(), new ArrayList<>())) {
+      format(child, depth + 1, children, lines);
+    }
+  }
+
+  private static Writer openFile(String path) {
+    if (path == null || path.isEmpty()) {
+      return null;
+    }
+    Writer file;
+    try {
+      file = new FileWriter(path, true);
+    } catch (IOException e) {
+      System.out.println("Could not open trace file " + path + ": " + e.getMessage());
+      return null;
+    }
+    Thread writer = new Thread(() -> writeFile(file), "trace-writer");
+    writer.setDaemon(true);
+    writer.start();
+    return file;
+  }
+
+  /**
+   * Appends queued spans to the trace file, flushing whenever the queue has been drained.
+   *
+   * @param file the trace file.
+   */
+  private static void writeFile(Writer file) {
+    List<String> lines = new ArrayList<>();
+    while (true) {
+      try {
+        lines.add(FILE_QUEUE.take());
+      } catch (InterruptedException e) {
+        return;
+      }
+      FILE_QUEUE.drainTo(lines);
+      try {
+        for (String line : lines) {
+          file.write(line);
+        }
+        file.flush();
+      } catch (IOException e) {
+        // Spans that cannot be written are only missing from the file.
+      }
+      lines.clear();
+    }
+  }
+
+  /**
+   * The Trace class holds the spans of one trace, indexed by span id and by parent span id.
+   */
+  private static class Trace {
+    private final Map<Long, Span> spans = new HashMap<>();
+    private final Map<Long, List<Span>> children = new HashMap<>();
+
+    private boolean add(Span span) {
+      if (spans.putIfAbsent(span.getSpanId(), span) != null) {
+        return false;
+      }
+      children.computeIfAbsent(span.getParentId(), id -> new ArrayList<>()).add(span);
+      return true;
+    }
+  }
+}
@@ -0,0 +1,44 @@
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The TracedResult class carries the result of a traced RPC back to the caller, together with
+ * the spans the callee recorded for the trace, so that the node that started the trace ends up
+ * with all of its spans.
+ */
+public class TracedResult implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private final Object value;
+  private final List<Span> spans;
+
+  /**
+   * Constructs a new TracedResult.
+   *
+   * @param value the result of the call.
+   * @param spans the spans recorded by the callee for the trace.
+   */
+  public TracedResult(Object value, List<Span> spans) {
+    this.value = value;
+    this.spans = new ArrayList<>(spans);
+  }
+
+  /**
+   * Gets the result of the call.
+   *
+   * @return the result, or null for a void method.
+   */
+  public Object getValue() {
+    return value;
+  }
+
+  /**
+   * Gets the spans recorded by the callee for the trace.
+   *
+   * @return the spans.
+   */
+  public List<Span> getSpans() {
+    return spans;
+  }
+}
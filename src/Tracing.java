@@ -0,0 +1,247 @@
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.RemoteException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The Tracing class propagates trace context along the RPC chain of a request and records a
+ * {@link Span} for every hop.
+ * <p>
+ * A trace is started by the caller of a request, and only a {@code kv.trace.sampleRate} fraction
+ * of requests (default 0, tracing off) is traced. Stubs wrapped with {@link #wrap} send calls
+ * made within a sampled trace through {@link RemoteInterface#invokeTraced}, which carries the
+ * trace context to the callee and the callee's spans back. Calls outside a sampled trace go
+ * straight to the stub, so an unsampled request costs one thread-local lookup per call.
+ */
+public final class Tracing {
+  private static final double SAMPLE_RATE =
+      Double.parseDouble(System.getProperty("kv.trace.sampleRate", "0"));
+  private static final ThreadLocal<Span> CURRENT = new ThreadLocal<>();
+
+  private Tracing() {
+  }
+
+  /**
+   * Starts a span for a request. Within a trace, the span becomes a child of the current span;
+   * otherwise a new trace is started if the request is sampled.
+   *
+   * @param name   the name of the request.
+   * @param nodeId the node the request runs on.
+   * @return the started span, or null if the request is not traced.
+   */
+  public static Span startTrace(String name, String nodeId) {
+    Span parent = CURRENT.get();
+    if (parent != null) {
+      return start(parent.getTraceId(), parent.getSpanId(), name, nodeId);
+    }
+    if (SAMPLE_RATE <= 0 || ThreadLocalRandom.current().nextDouble() >= SAMPLE_RATE) {
+      return null;
+    }
+    return start(newId(), 0, name, nodeId);
+  }
+
+  /**
+   * Starts a child span of the current span, on the same node.
+   *
+   * @param name the name of the step.
+   * @return the started span, or null if the current request is not traced.
+   */
+  public static Span startSpan(String name) {
+    Span parent = CURRENT.get();
+    return parent == null ? null
+        : start(parent.getTraceId(), parent.getSpanId(), name, parent.getNodeId());
+  }
+
+  /**
+   * Finishes a span and records it. Does nothing for a null span.
+   *
+   * @param span the span to be finished, or null.
+   */
+  public static void finish(Span span) {
+    finish(span, null);
+  }
+
+  /**
+   * Finishes a span that may have failed and records it. Does nothing for a null span.
+   *
+   * @param span    the span to be finished, or null.
+   * @param failure the failure that ended the step, or null if it succeeded.
+   */
+  public static void finish(Span span, Throwable failure) {
+    if (span == null) {
+      return;
+    }
+    span.finish(failure);
+    if (CURRENT.get() == span) {
+      CURRENT.set(span.getPrevious());
+    }
+    TraceCollector.record(span);
+  }
+
+  /**
+   * Wraps a stub so that calls made within a trace carry the trace context. Wrapped stubs are
+   * equal to each other if their stubs are, and can be passed to other nodes.
+   *
+   * @param stub the stub to be wrapped, or null.
+   * @return the wrapped stub, or null if {@code stub} is null.
+   */
+  public static RemoteInterface wrap(RemoteInterface stub) {
+    if (stub == null || unwrap(stub) != stub) {
+      return stub;
+    }
+    return (RemoteInterface) Proxy.newProxyInstance(RemoteInterface.class.getClassLoader(),
+        new Class<?>[] {RemoteInterface.class}, new TracingHandler(stub));
+  }
+
+  /**
+   * Wraps an executor so that tasks run within the trace of the thread that submitted them.
+   *
+   * @param executor the executor to be wrapped.
+   * @return the wrapped executor.
+   */
+  public static Executor propagating(Executor executor) {
+    return task -> {
+      Span span = CURRENT.get();
+      if (span == null) {
+        executor.execute(task);
+        return;
+      }
+      executor.execute(() -> {
+        Span previous = CURRENT.get();
+        CURRENT.set(span);
+        try {
+          task.run();
+        } finally {
+          CURRENT.set(previous);
+        }
+      });
+    };
+  }
+
+  /**
+   * Handles a traced call on the callee's side: runs the call within a span that continues the
+   * caller's trace, and returns the result together with the spans recorded for this call: its
+   * own span and the spans below it, including those passed back by the calls it made in turn.
+   *
+   * @param target       the object handling the call.
+   * @param nodeId       the node id of the callee.
+   * @param traceId      the id of the caller's trace.
+   * @param parentSpanId the id of the caller's span.
+   * @param method       the name of the {@link RemoteInterface} method called.
+   * @param types        the parameter types of the method.
+   * @param args         the arguments of the call.
+   * @return the result of the call and the spans of the call.
+   * @throws RemoteException if the method is unknown or the call failed.
+   */
+  public static TracedResult serve(RemoteInterface target, String nodeId, long traceId,
+      long parentSpanId, String method, Class<?>[] types, Object[] args) throws RemoteException {
+    Method remoteMethod;
+    try {
+      remoteMethod = RemoteInterface.class.getMethod(method, types);
+    } catch (NoSuchMethodException e) {
+      throw new RemoteException("Unknown method " + method, e);
+    }
+
+    Span span = start(traceId, parentSpanId, method, nodeId);
+    Object value = null;
+    Throwable failure = null;
+    try {
+      value = remoteMethod.invoke(target, args);
+    } catch (InvocationTargetException e) {
+      failure = e.getCause();
+    } catch (IllegalAccessException e) {
+      failure = e;
+    } finally {
+      finish(span, failure);
+    }
+
+    if (failure instanceof RemoteException) {
+      throw (RemoteException) failure;
+    } else if (failure instanceof RuntimeException) {
+      throw (RuntimeException) failure;
+    } else if (failure instanceof Error) {
+      throw (Error) failure;
+    } else if (failure != null) {
+      throw new RemoteException("Traced call to " + method + " failed", failure);
+    }
+    return new TracedResult(value, TraceCollector.getSubtree(traceId, span.getSpanId()));
+  }
+
+  private static Span start(long traceId, long parentId, String name, String nodeId) {
+    Span span = new Span(traceId, newId(), parentId, name, nodeId, CURRENT.get());
+    CURRENT.set(span);
+    return span;
+  }
+
+  private static long newId() {
+    long id;
+    do {
+      id = ThreadLocalRandom.current().nextLong();
+    } while (id == 0);
+    return id;
+  }
+
+  private static RemoteInterface unwrap(Object stub) {
+    if (stub != null && Proxy.isProxyClass(stub.getClass())
+        && Proxy.getInvocationHandler(stub) instanceof TracingHandler) {
+      return ((TracingHandler) Proxy.getInvocationHandler(stub)).delegate;
+    }
+    return stub instanceof RemoteInterface ? (RemoteInterface) stub : null;
+  }
+
+  /**
+   * The TracingHandler class sends the calls of a wrapped stub either straight to the stub or,
+   * within a trace, through {@link RemoteInterface#invokeTraced}.
+   */
+  private static class TracingHandler implements InvocationHandler, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final RemoteInterface delegate;
+
+    private TracingHandler(RemoteInterface delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      if (method.getDeclaringClass() == Object.class) {
+        switch (method.getName()) {
+          case "equals":
+            Object other = unwrap(args[0]);
+            return other != null && delegate.equals(other);
+          case "hashCode":
+            return delegate.hashCode();
+          default:
+            return delegate.toString();
+        }
+      }
+
+      Span span = method.getName().equals("invokeTraced") ? null
+          : startSpan("call " + method.getName());
+      if (span == null) {
+        try {
+          return method.invoke(delegate, args);
+        } catch (InvocationTargetException e) {
+          throw e.getCause();
+        }
+      }
+
+      Throwable failure = null;
+      try {
+        TracedResult result = delegate.invokeTraced(span.getTraceId(), span.getSpanId(),
+            method.getName(), method.getParameterTypes(), args);
+        TraceCollector.recordAll(result.getSpans());
+        return result.getValue();
+      } catch (RemoteException | RuntimeException e) {
+        failure = e;
+        throw e;
+      } finally {
+        finish(span, failure);
+      }
+    }
+  }
+}
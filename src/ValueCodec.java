@@ -0,0 +1,190 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The ValueCodec class compresses values before they are stored and replicated, and restores them
+ * when they are handed to a client.
+ * <p>
+ * A value of at least {@code kv.compression.threshold} characters (default 1024) is compressed
+ * with Deflate. If a preset dictionary is configured for the longest matching key prefix, it is
+ * used instead, and already from {@code kv.compression.dictionaryThreshold} characters (default
+ * 64), so that short values of similar shape, such as JSON documents with the same fields, are
+ * compressed as well. The compressed value is only kept if it is smaller than the original. Stored values stay
+ * {@code String}s, so they pass through the commit messages, the Merkle tree, and repair unchanged:
+ * <ul>
+ *   <li>a compressed value is {@code \u0080} followed by the Base64 of the Deflate stream;</li>
+ *   <li>a plain value that happens to start with {@code \u0080} or {@code \u0081} is escaped with
+ *   a leading {@code \u0081};</li>
+ *   <li>any other value is stored as is.</li>
+ * </ul>
+ * <p>
+ * Compression is configured through the following system properties, which have to be the same on
+ * all servers and clients:
+ * <ul>
+ *   <li>{@code kv.compression.enabled} - whether to compress values (default true).</li>
+ *   <li>{@code kv.compression.threshold} - minimum value length to be compressed (default 1024).</li>
+ *   <li>{@code kv.compression.dictionaryThreshold} - minimum value length to be compressed for
+ *   keys with a dictionary (default 64).</li>
+ *   <li>{@code kv.compression.dictionaries} - comma-separated {@code prefix:path} pairs naming a
+ *   dictionary file for each key prefix.</li>
+ * </ul>
+ */
+public class ValueCodec {
+  private static final char COMPRESSED = '\u0080';
+  private static final char ESCAPED = '\u0081';
+
+  private static final boolean ENABLED =
+      Boolean.parseBoolean(System.getProperty("kv.compression.enabled", "true"));
+  private static final int THRESHOLD = Integer.getInteger("kv.compression.threshold", 1024);
+  private static final int DICTIONARY_THRESHOLD =
+      Integer.getInteger("kv.compression.dictionaryThreshold", 64);
+  // Dictionaries by key prefix for compression, and by Adler-32 checksum for decompression.
+  private static final TreeMap<String, byte[]> DICTIONARIES_BY_PREFIX = new TreeMap<>();
+  private static final Map<Long, byte[]> DICTIONARIES_BY_CHECKSUM = new HashMap<>();
+
+  static {
+    String dictionaries = System.getProperty("kv.compression.dictionaries", "");
+    for (String entry : dictionaries.split(",")) {
+      if (entry.trim().isEmpty()) {
+        continue;
+      }
+      String[] prefixPath = entry.split(":", 2);
+      try {
+        registerDictionary(prefixPath[0].trim(),
+            Files.readAllBytes(Paths.get(prefixPath[1].trim())));
+      } catch (IOException e) {
+        throw new UncheckedIOException("Could not read compression dictionary " + entry, e);
+      }
+    }
+  }
+
+  private ValueCodec() {
+  }
+
+  /**
+   * Registers a preset dictionary for the values of keys starting with the given prefix.
+   *
+   * @param prefix     the key prefix.
+   * @param dictionary the dictionary, typically a concatenation of representative values.
+   */
+  public static synchronized void registerDictionary(String prefix, byte[] dictionary) {
+    Adler32 checksum = new Adler32();
+    checksum.update(dictionary);
+    DICTIONARIES_BY_PREFIX.put(prefix, dictionary);
+    DICTIONARIES_BY_CHECKSUM.put(checksum.getValue(), dictionary);
+  }
+
+  /**
+   * Encodes a value for storage, compressing it if that makes it smaller. Values of keys with a
+   * dictionary are compressed from the lower of the two thresholds.
+   *
+   * @param key   the key of the value, used to pick a dictionary.
+   * @param value the value as given by the client.
+   * @return the stored form of the value.
+   */
+  public static String encode(String key, String value) {
+    if (ENABLED && value.length() >= Math.min(THRESHOLD, DICTIONARY_THRESHOLD)) {
+      byte[] dictionary = dictionaryFor(key);
+      if (value.length() >= (dictionary == null ? THRESHOLD : DICTIONARY_THRESHOLD)) {
+        byte[] compressed = deflate(value.getBytes(StandardCharsets.UTF_8), dictionary);
+        String encoded = COMPRESSED + Base64.getEncoder().encodeToString(compressed);
+        if (encoded.length() < value.length()) {
+          return encoded;
+        }
+      }
+    }
+    if (!value.isEmpty() && (value.charAt(0) == COMPRESSED || value.charAt(0) == ESCAPED)) {
+      return ESCAPED + value;
+    }
+    return value;
+  }
+
+  /**
+   * Decodes a stored value back into the value given by the client.
+   *
+   * @param stored the stored form of the value, or null.
+   * @return the original value, or null if {@code stored} is null.
+   */
+  public static String decode(String stored) {
+    if (stored == null || stored.isEmpty()) {
+      return stored;
+    }
+    if (stored.charAt(0) == COMPRESSED) {
+      byte[] compressed = Base64.getDecoder().decode(stored.substring(1));
+      return new String(inflate(compressed), StandardCharsets.UTF_8);
+    }
+    if (stored.charAt(0) == ESCAPED) {
+      return stored.substring(1);
+    }
+    return stored;
+  }
+
+  private static synchronized byte[] dictionaryFor(String key) {
+    Map.Entry<String, byte[]> entry = DICTIONARIES_BY_PREFIX.floorEntry(key);
+    while (entry != null && !key.startsWith(entry.getKey())) {
+      entry = DICTIONARIES_BY_PREFIX.lowerEntry(entry.getKey());
+    }
+    return entry == null ? null : entry.getValue();
+  }
+
+  private static byte[] deflate(byte[] input, byte[] dictionary) {
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try {
+      if (dictionary != null) {
+        deflater.setDictionary(dictionary);
+      }
+      deflater.setInput(input);
+      deflater.finish();
+      ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 2 + 16);
+      byte[] buffer = new byte[8192];
+      while (!deflater.finished()) {
+        out.write(buffer, 0, deflater.deflate(buffer));
+      }
+      return out.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private static byte[] inflate(byte[] input) {
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(input);
+      ByteArrayOutputStream out = new ByteArrayOutputStream(input.length * 4);
+      byte[] buffer = new byte[8192];
+      while (!inflater.finished()) {
+        int n = inflater.inflate(buffer);
+        if (n == 0 && inflater.needsDictionary()) {
+          byte[] dictionary;
+          synchronized (ValueCodec.class) {
+            dictionary = DICTIONARIES_BY_CHECKSUM.get(inflater.getAdler() & 0xffffffffL);
+          }
+          if (dictionary == null) {
+            throw new IllegalStateException("Missing compression dictionary for stored value");
+          }
+          inflater.setDictionary(dictionary);
+        } else if (n == 0 && inflater.needsInput()) {
+          throw new IllegalStateException("Truncated compressed value");
+        }
+        out.write(buffer, 0, n);
+      }
+      return out.toByteArray();
+    } catch (DataFormatException e) {
+      throw new IllegalStateException("Corrupt compressed value", e);
+    } finally {
+      inflater.end();
+    }
+  }
+}
@@ -0,0 +1,88 @@
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * The VersionedValue class holds the value of a key together with the version of the write that
+ * produced it. A null value with a non-zero version marks a deleted key.
+ * <p>
+ * The value is kept in its stored form, as produced by {@link ValueCodec}, so it crosses the wire
+ * compressed and is only restored when read with {@link #getValue()}.
+ * <p>
+ * Versions are assigned by the coordinator and only grow, so the copy with the highest version is
+ * the most recent one.
+ */
+public class VersionedValue implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private final String value;
+  private final long version;
+
+  /**
+   * Constructs a new VersionedValue.
+   *
+   * @param value   the stored form of the value, or null if the key is absent.
+   * @param version the version of the write that produced the value, or 0 if never written.
+   */
+  public VersionedValue(String value, long version) {
+    this.value = value;
+    this.version = version;
+  }
+
+  /**
+   * Gets the value as given by the client.
+   *
+   * @return the value, or null if the key is absent.
+   */
+  public String getValue() {
+    return ValueCodec.decode(value);
+  }
+
+  /**
+   * Gets the value in the form it is stored and replicated in.
+   *
+   * @return the stored value, or null if the key is absent.
+   */
+  public String getStoredValue() {
+    return value;
+  }
+
+  /**
+   * Gets the version of the write that produced the value.
+   *
+   * @return the version, or 0 if the key was never written.
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * Checks if the key is present.
+   *
+   * @return true if the value is not null, false otherwise.
+   */
+  public boolean isPresent() {
+    return value != null;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof VersionedValue)) {
+      return false;
+    }
+    VersionedValue other = (VersionedValue) o;
+    return version == other.version && Objects.equals(value, other.value);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(value, version);
+  }
+
+  @Override
+  public String toString() {
+    return isPresent() ? "Value: " + getValue() : "Key not found";
+  }
+}
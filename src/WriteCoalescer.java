@@ -0,0 +1,209 @@
+import java.rmi.RemoteException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * The WriteCoalescer class queues concurrent writes to the same key and hands them to a
+ * {@link BatchWriter} in arrival order, so that contending writers take turns instead of racing
+ * through the two-phase commit and aborting each other.
+ * <p>
+ * Like {@link ReadBatcher}, it adds no delay to an uncontended key: the first writer commits right
+ * away, and writers arriving meanwhile are committed together as the next batch, up to
+ * {@code kv.write.maxBatchWrites} writes (default 64).
+ */
+public class WriteCoalescer {
+
+  /**
+   * Commits a batch of writes to a single key.
+   */
+  public interface BatchWriter {
+
+    /**
+     * Commits the given writes in order.
+     *
+     * @param key    the key written to.
+     * @param writes the writes, in arrival order.
+     * @return for each write, true if it was committed, false otherwise.
+     * @throws RemoteException if the batch could not be committed.
+     */
+    boolean[] write(String key, List<Write> writes) throws RemoteException;
+  }
+
+  /**
+   * The Write class is a single PUT or DELETE waiting to be committed.
+   */
+  public static class Write {
+    private final String value;
+    private final ConsistencyLevel level;
+    private boolean leader;
+    private boolean done;
+    private boolean result;
+    private RemoteException failure;
+
+    private Write(String value, ConsistencyLevel level) {
+      this.value = value;
+      this.level = level;
+    }
+
+    /**
+     * Gets the value to be written.
+     *
+     * @return the value, or null for a DELETE.
+     */
+    public String getValue() {
+      return value;
+    }
+
+    /**
+     * Checks if this write is a DELETE.
+     *
+     * @return true for a DELETE, false for a PUT.
+     */
+    public boolean isDelete() {
+      return value == null;
+    }
+
+    /**
+     * Gets the consistency level of the write.
+     *
+     * @return the consistency level.
+     */
+    public ConsistencyLevel getLevel() {
+      return level;
+    }
+
+    /**
+     * Waits until this write has been committed or has to commit the next batch itself.
+     *
+     * @return true if the caller has to commit the next batch, false if the write is done.
+     */
+    private synchronized boolean awaitLeadershipOrResult() {
+      boolean interrupted = false;
+      while (!done && !leader) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          // Other writers depend on this write taking its turn, so keep waiting.
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+      return !done;
+    }
+
+    private synchronized void promote() {
+      leader = true;
+      notifyAll();
+    }
+
+    private synchronized void complete(boolean result, RemoteException failure) {
+      if (done) {
+        return;
+      }
+      this.result = result;
+      this.failure = failure;
+      this.done = true;
+      notifyAll();
+    }
+
+    private synchronized boolean getResult() throws RemoteException {
+      if (failure != null) {
+        throw failure;
+      }
+      return result;
+    }
+  }
+
+  private final BatchWriter writer;
+  private final int maxBatchWrites;
+  // Guarded by this. A key has a queue only while writes to it are in flight.
+  private final Map<String, Queue<Write>> queues;
+
+  /**
+   * Constructs a new WriteCoalescer using the batch size configured through system properties.
+   *
+   * @param writer the writer called once per batch.
+   */
+  public WriteCoalescer(BatchWriter writer) {
+    this.writer = writer;
+    this.maxBatchWrites = Integer.getInteger("kv.write.maxBatchWrites", 64);
+    this.queues = new HashMap<>();
+  }
+
+  /**
+   * Queues a PUT or DELETE and waits until it has been committed.
+   *
+   * @param key   the key to be written.
+   * @param value the value to be written, or null for a DELETE.
+   * @param level the consistency level of the write.
+   * @return true if the write was committed, false otherwise.
+   * @throws RemoteException if the batch this write was part of failed.
+   */
+  public boolean write(String key, String value, ConsistencyLevel level) throws RemoteException {
+    Write write = new Write(value, level);
+    synchronized (this) {
+      Queue<Write> queue = queues.get(key);
+      if (queue == null) {
+        queue = new ArrayDeque<>();
+        queues.put(key, queue);
+        write.leader = true;
+      }
+      queue.add(write);
+    }
+
+    if (write.awaitLeadershipOrResult()) {
+      runBatch(key);
+    }
+    return write.getResult();
+  }
+
+  /**
+   * Commits the queued writes to a key as one batch and hands the next batch to the first writer
+   * still waiting.
+   */
+  private void runBatch(String key) {
+    List<Write> batch = new ArrayList<>();
+    synchronized (this) {
+      Queue<Write> queue = queues.get(key);
+      while (!queue.isEmpty() && batch.size() < maxBatchWrites) {
+        batch.add(queue.remove());
+      }
+    }
+
+    try {
+      boolean[] results = writer.write(key, batch);
+      for (int i = 0; i < batch.size(); i++) {
+        batch.get(i).complete(results[i], null);
+      }
+    } catch (RemoteException | RuntimeException e) {
+      RemoteException failure = e instanceof RemoteException
+          ? (RemoteException) e : new RemoteException("Batched write failed", e);
+      for (Write write : batch) {
+        write.complete(false, failure);
+      }
+    } finally {
+      // Only writes left unanswered by an Error are completed here.
+      for (Write write : batch) {
+        write.complete(false, new RemoteException("Batched write failed"));
+      }
+
+      Write next;
+      synchronized (this) {
+        Queue<Write> queue = queues.get(key);
+        next = queue.peek();
+        if (next == null) {
+          queues.remove(key);
+        }
+      }
+      if (next != null) {
+        next.promote();
+      }
+    }
+  }
+}